@@ -1,31 +1,46 @@
 package lox.java;
 
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.HashMap;
-import java.util.Random;
 
-import static lox.java.Lox.error;
 import static lox.java.LoxType.*;
 
 class Annotate extends Pass<List<Stmt>, List<Stmt>>
   implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
-  private static final Random rand = new Random();
-  private final Map<String, Expr.Symbol> types = new HashMap<>();
-
-  private Scope<String> scope = new Scope<>();
+  private final Symbols symbols = context.symbols;
+  // how many times each name has been declared so far, indexed by symbol id
+  private final int[] declarationCounts;
+  private final Session session = context.session;
+
+  // declarations in scope, in the same order the Resolver saw them
+  private Expr.Symbol[] declared = new Expr.Symbol[16];
+  private int declarations = 0;
+  private int[] scopeStarts = new int[16];
+  private int scopes = 0;
   private Stmt.Function currentFunction = null;
   private boolean returnFound = false;
+  // how many loops we're inside of in the current function
+  private int loops = 0;
 
   // boilerplate start
-  Annotate(List<Stmt> input) {
-    super(input);
+  Annotate(CompilationContext context, List<Stmt> input) {
+    super(context, input);
+    // a REPL session keeps counting, so a line never reuses the mangled name of an earlier one
+    declarationCounts = session == null ? new int[symbols.size()] : session.declarationCounts(symbols.size());
   }
 
   public List<Stmt> runPass() {
+    if (session != null) {
+      // the same outer scope the Resolver saw; these are already annotated
+      beginScope();
+      for (Expr.Symbol symbol : session.declarations()) push(symbol);
+    }
+    beginScope();
     for (Stmt stmt : input) {
       stmt.accept(this);
     }
+    endScope();
+    if (session != null) endScope();
     return input;
   }
 
@@ -33,7 +48,7 @@ class Annotate extends Pass<List<Stmt>, List<Stmt>>
   public Void visitStmt(Stmt.Print stmt) { return stmt.expression.accept(this); }
   public Void visitStmt(Stmt.If stmt) {
     stmt.condition.accept(this);
-    if (stmt.condition.type != BOOL) {
+    if (stmt.condition.type != BOOL && !reported(stmt.condition)) {
       error(stmt.condition.token.line, stmt.condition.token.column,
         "Condition for 'if' statement must be boolean; got " + stmt.condition.type);
     }
@@ -43,50 +58,50 @@ class Annotate extends Pass<List<Stmt>, List<Stmt>>
 
   public Void visitStmt(Stmt.While stmt) {
     stmt.condition.accept(this);
-    if (stmt.condition.type != BOOL) {
+    if (stmt.condition.type != BOOL && !reported(stmt.condition)) {
       error(stmt.condition.token.line, stmt.condition.token.column,
         "Illegal expression type for while condition: expected BOOL, got " + stmt.condition.type);
     }
-    return stmt.body.accept(this);
+    loops++;
+    stmt.body.accept(this);
+    loops--;
+    return null;
   }
 
-  public Void visitStmt(Stmt.LoopControl keyword) { return null; }
+  public Void visitStmt(Stmt.LoopControl keyword) {
+    if (loops == 0) {
+      error(keyword.token.line, keyword.token.column,
+          "Illegal keyword '" + keyword.token.lexeme + "' when not inside a loop");
+    }
+    return null;
+  }
 
   // boilerplate end
 
   public Void visitStmt(Stmt.Var var) {
-    String originalName = var.identifier.token.lexeme;
     create(var.identifier);
-    if (var.equals != null) {
-      // TODO: this is such a hack
-      String mangled = var.identifier.token.lexeme;
-      var.identifier.token.lexeme = originalName;
-      var.equals.accept(this);
-      var.identifier.token.lexeme = mangled;
-    }
+    if (var.equals != null) var.equals.accept(this);
     return null;
   }
 
   public Void visitStmt(Stmt.Block block) {
-    Scope<String> oldScope = scope;
-    scope = new Scope<>(scope);
+    beginScope();
     for (Stmt stmt : block.statements) {
       stmt.accept(this);
     }
-    scope = oldScope;
+    endScope();
     return null;
   }
 
   public Void visitStmt(Stmt.Function func) {
     func.identifier.arity = func.arguments.size();
-    String oldName = func.identifier.token.lexeme;
     create(func.identifier);
 
     Stmt.Function oldFunc = currentFunction;
     boolean oldReturn = returnFound;
+    int oldLoops = loops;
     // don't go through Stmt.Block at all
-    Scope<String> oldScope = scope;
-    scope = new Scope<>(scope);
+    beginScope();
     // define the arguments in the *current* scope (so you can't define a variable with the same name)
     for (Expr.Symbol symbol : func.arguments) {
       create(symbol);
@@ -95,6 +110,7 @@ class Annotate extends Pass<List<Stmt>, List<Stmt>>
     // push these on the stack
     currentFunction = func;
     returnFound = false;
+    loops = 0;
 
     for (Stmt stmt : func.body.statements) {
       stmt.accept(this);
@@ -108,14 +124,15 @@ class Annotate extends Pass<List<Stmt>, List<Stmt>>
       } else {
         error(func.identifier.token.line, func.identifier.token.column,
           String.format("Must return a value for function '%s' declared as " + func.identifier.type,
-            oldName));
+            func.identifier.token.lexeme));
       }
     }
 
     // pop them off
     currentFunction = oldFunc;
     returnFound = oldReturn;
-    scope = oldScope;
+    loops = oldLoops;
+    endScope();
 
     return null;
   }
@@ -138,7 +155,7 @@ class Annotate extends Pass<List<Stmt>, List<Stmt>>
     } else {
       actual = VOID;
     }
-    if (actual != currentFunction.identifier.type) {
+    if (actual != currentFunction.identifier.type && (stmt.value == null || !reported(stmt.value))) {
       error(stmt.token.line, stmt.token.column, "Illegal return type: function declared with type "
         + currentFunction.identifier.type + ", got " + actual);
     }
@@ -147,6 +164,7 @@ class Annotate extends Pass<List<Stmt>, List<Stmt>>
 
   public Void visitExpr(Expr.Unary expr) {
     expr.right.accept(this);
+    if (reported(expr.right)) return null;
     if (expr.token.type == Token.Type.BANG) {
       if (expr.right.type != BOOL) {
         error(expr.token.line, expr.token.column, "Expected boolean expression");
@@ -168,13 +186,22 @@ class Annotate extends Pass<List<Stmt>, List<Stmt>>
   public Void visitExpr(Expr.Binary expr) {
     expr.left.accept(this);
     expr.right.accept(this);
-    if (expr.token.type == Token.Type.EQUAL_EQUAL) {
+    if (reported(expr.left, expr.right)) return null;
+    if (expr.token.type == Token.Type.EQUAL_EQUAL || expr.token.type == Token.Type.BANG_EQUAL) {
       // TODO: if different types, replace by constant false
       /*
       if (expr.left.type != expr.right.type) {
       }
       */
       expr.type = BOOL;
+    } else if (isComparison(expr.token.type)) {
+      try {
+        assertPromotable(expr.left.type, expr.right.type, DOUBLE);
+        expr.type = BOOL;
+      } catch (TypeError e) {
+        error(expr.token.line, expr.token.column,
+          String.format("Illegal operator %s for types %s and %s", expr.token, expr.left.type, expr.right.type));
+      }
     } else {
       try {
         // TODO: catch max and min types
@@ -190,7 +217,7 @@ class Annotate extends Pass<List<Stmt>, List<Stmt>>
   public Void visitExpr(Expr.Logical expr) {
     expr.left.accept(this);
     expr.right.accept(this);
-    if (expr.left.type != BOOL || expr.right.type != BOOL) {
+    if ((expr.left.type != BOOL || expr.right.type != BOOL) && !reported(expr.left, expr.right)) {
       error(expr.token, String.format("Expected boolean expressions, got %s and %s",
         expr.left.type, expr.right.type));
     }
@@ -207,47 +234,33 @@ class Annotate extends Pass<List<Stmt>, List<Stmt>>
   public Void visitExpr(Expr.Literal expr) { return null; }
 
   public Void visitExpr(Expr.Symbol symbol) {
-    String oldName = symbol.token.lexeme;
     /* ideally we would replace 'symbol' outright,
      * but we don't have a proper reference */
-    symbol.token.lexeme = scope.get(oldName);
-    Expr.Symbol shouldBe = types.get(symbol.token.lexeme);
-    if (shouldBe == null) {
-      error(symbol.token.line, symbol.token.column,
-          "Undeclared variable " + oldName);
-    } else {
-      symbol.type = shouldBe.type;
-      symbol.arity = shouldBe.arity;
-    }
+    retrieve(symbol);
     return null;
   }
 
   public Void visitExpr(Expr.Assign expr) {
-    Expr.Symbol old = expr.lvalue;
-    expr.lvalue = retrieve(old);
+    retrieve(expr.lvalue);
     expr.rvalue.accept(this);
-    if (expr.lvalue == null) error(old.token.line, old.token.column,
-        "Undeclared variable " + old.token.lexeme);
-    else {
-      try {
-        expr.type = assertPromotable(expr.lvalue.type, expr.rvalue.type, null);
-      } catch (TypeError e) {
-        error(expr.token.line, expr.token.column,
-        "Cannot assign expression of type " + expr.rvalue.type + " to variable of type " + expr.lvalue.type);
-      }
+    if (reported(expr.lvalue, expr.rvalue)) return null;
+    try {
+      expr.type = assertPromotable(expr.lvalue.type, expr.rvalue.type, null);
+    } catch (TypeError e) {
+      error(expr.token.line, expr.token.column,
+      "Cannot assign expression of type " + expr.rvalue.type + " to variable of type " + expr.lvalue.type);
     }
     return null;
   }
 
   public Void visitExpr(Expr.Call call) {
-    String oldName = call.callee.token.lexeme;
-    call.callee = retrieve(call.callee);
+    retrieve(call.callee);
 
-    if (call.callee == null) {
-      error(call.token.line, call.token.column, "Undeclared function " + oldName);
+    if (reported(call.callee)) {
+      // undeclared
     } else if (call.arguments.size() != call.callee.arity) {
       error(call.token.line, call.token.column,
-          "Invalid number of arguments to function '" + oldName
+          "Invalid number of arguments to function '" + call.callee.token.lexeme
           + "' (expected " + call.callee.arity
           + ", got " + call.arguments.size()
           + ')');
@@ -262,34 +275,61 @@ class Annotate extends Pass<List<Stmt>, List<Stmt>>
     return null;
   }
 
+  private static boolean isComparison(Token.Type type) {
+    return type == Token.Type.LESS || type == Token.Type.LESS_EQUAL
+      || type == Token.Type.GREATER || type == Token.Type.GREATER_EQUAL;
+  }
+
   private void create(Expr.Symbol symbol) {
-    if (scope.getImmediate(symbol.token.lexeme) != null) {
-      error(symbol.token.line, symbol.token.column,
-          "Illegal redeclaration of variable " + symbol.token.lexeme);
-      return;
-    }
-    String mangled = mangle(symbol.token.lexeme);
-    scope.put(symbol.token.lexeme, mangled);
-    symbol.token.lexeme = mangled;
+    symbol.id = mangle(symbol.token);
 
     // TODO
     assert symbol.type != null;
-    types.put(mangled, symbol);
+    // the Resolver rejected it, so it isn't on the Resolver's stack either
+    if (symbol.depth == -1) return;
+    push(symbol);
+  }
+
+  private void push(Expr.Symbol symbol) {
+    if (declarations == declared.length) declared = Arrays.copyOf(declared, declarations * 2);
+    declared[declarations++] = symbol;
   }
 
-  private Expr.Symbol retrieve(Expr.Symbol symbol) {
-    return types.get(scope.get(symbol.token.lexeme));
+  /* copies the mangled name and type of the declaration the Resolver found */
+  private void retrieve(Expr.Symbol symbol) {
+    // undeclared, which the Resolver reported; the type stays unknown
+    if (symbol.depth == -1) return;
+    Expr.Symbol declaration = declared[scopeStarts[scopes - 1 - symbol.depth] + symbol.slot];
+    symbol.id = declaration.id;
+    symbol.type = declaration.type;
+    symbol.arity = declaration.arity;
   }
 
-  private String mangle(String name) {
-    name += '_';
-    while (types.containsKey(name)) {
-      name += genChar();
+  /* an expression without a type already has an error, so nothing built on it is reported again */
+  private static boolean reported(Expr... exprs) {
+    for (Expr expr : exprs) {
+      if (expr.type == null) return true;
     }
-    return name;
+    return false;
+  }
+
+  private void beginScope() {
+    if (scopes == scopeStarts.length) scopeStarts = Arrays.copyOf(scopeStarts, scopes * 2);
+    scopeStarts[scopes++] = declarations;
+  }
+
+  private void endScope() {
+    declarations = scopeStarts[--scopes];
   }
 
-  private char genChar() {
-    return (char)(rand.nextInt(26) + 'a');
+  /*
+   * The nth declaration of `x` is named x_ for n = 0 and x_n afterwards.
+   * This can't collide with any other mangled name: everything after the last '_'
+   * is either empty or a number (which has no '_' of its own),
+   * so the name and the count can always be recovered.
+   */
+  private int mangle(Token name) {
+    int count = declarationCounts[name.symbol]++;
+    return symbols.intern(count == 0 ? name.lexeme + '_' : name.lexeme + '_' + count);
   }
 }
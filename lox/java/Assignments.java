@@ -0,0 +1,77 @@
+package lox.java;
+
+import java.util.BitSet;
+import java.util.List;
+
+/* finds every variable assigned to after its declaration, by mangled id */
+class Assignments implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+  final BitSet assigned = new BitSet();
+
+  static BitSet in(List<Stmt> statements) {
+    Assignments assignments = new Assignments();
+    for (Stmt stmt : statements) {
+      stmt.accept(assignments);
+    }
+    return assignments.assigned;
+  }
+
+  public Void visitStmt(Stmt.Expression stmt) { return stmt.expression.accept(this); }
+  public Void visitStmt(Stmt.Print stmt) { return stmt.expression.accept(this); }
+  public Void visitStmt(Stmt.LoopControl keyword) { return null; }
+
+  public Void visitStmt(Stmt.Var var) {
+    // the initializer doesn't count
+    return var.equals == null ? null : var.equals.rvalue.accept(this);
+  }
+
+  public Void visitStmt(Stmt.Block block) {
+    for (Stmt stmt : block.statements) {
+      stmt.accept(this);
+    }
+    return null;
+  }
+
+  public Void visitStmt(Stmt.If stmt) {
+    stmt.condition.accept(this);
+    stmt.then.accept(this);
+    return stmt.otherwise == null ? null : stmt.otherwise.accept(this);
+  }
+
+  public Void visitStmt(Stmt.While stmt) {
+    stmt.condition.accept(this);
+    return stmt.body.accept(this);
+  }
+
+  public Void visitStmt(Stmt.Function func) { return func.body.accept(this); }
+
+  public Void visitStmt(Stmt.Return stmt) {
+    return stmt.value == null ? null : stmt.value.accept(this);
+  }
+
+  public Void visitExpr(Expr.Literal expr) { return null; }
+  public Void visitExpr(Expr.Symbol symbol) { return null; }
+  public Void visitExpr(Expr.Grouping expr) { return expr.expression.accept(this); }
+  public Void visitExpr(Expr.Unary expr) { return expr.right.accept(this); }
+
+  public Void visitExpr(Expr.Binary expr) {
+    expr.left.accept(this);
+    return expr.right.accept(this);
+  }
+
+  public Void visitExpr(Expr.Logical expr) {
+    expr.left.accept(this);
+    return expr.right.accept(this);
+  }
+
+  public Void visitExpr(Expr.Assign expr) {
+    assigned.set(expr.lvalue.id);
+    return expr.rvalue.accept(this);
+  }
+
+  public Void visitExpr(Expr.Call call) {
+    for (Expr argument : call.arguments) {
+      argument.accept(this);
+    }
+    return null;
+  }
+}
@@ -0,0 +1,173 @@
+package lox.java;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+/*
+ * Compiles many files at once, for `jlox a.lox b.lox ...` or `jlox dir` (every .lox file under dir).
+ *
+ * Each file is a CompilationContext of its own, compiled on a pool of --jobs threads,
+ * and at most --tool-jobs of opt, clang and lli run at the same time.
+ * (With --pipe each compilation streams into tools of its own, so only --jobs bounds those.)
+ * Executables are named after their source instead of a.out; see Linker.executable.
+ *
+ * Diagnostics come out file by file in the order the files were given, then a total.
+ * --time-passes and --stats list how long each file took,
+ * and --stats-json writes the statistics of every file as a JSON array.
+ */
+class Batch {
+  final Semaphore tools;
+  private final Options options;
+  private final Pipeline<Source, ?> pipeline;
+
+  Batch(Options options, Pipeline<Source, ?> pipeline) {
+    this.options = options;
+    this.pipeline = pipeline;
+    tools = new Semaphore(options.toolJobs == 0 ? options.jobs : options.toolJobs);
+  }
+
+  static boolean isBatch(Options options) {
+    return options.files.size() > 1 || Files.isDirectory(options.resolve(options.files.get(0)));
+  }
+
+  /* returns the exit status, like Lox.runFile */
+  int run() throws IOException {
+    List<String> files = files();
+    long start = System.nanoTime();
+    ExecutorService executor = Executors.newFixedThreadPool(options.jobs);
+    List<Future<Result>> futures = new ArrayList<>();
+    for (String file : files) {
+      futures.add(executor.submit(() -> compile(file)));
+    }
+    executor.shutdown();
+
+    List<Result> results = new ArrayList<>();
+    int errors = 0, failedFiles = 0, status = 0;
+    for (int i = 0; i < files.size(); i++) {
+      Result result;
+      try {
+        result = futures.get(i).get();
+      } catch (InterruptedException e) {  // Ctrl-C
+        // the compilations see it as an interrupted tool
+        executor.shutdownNow();
+        return 130;
+      } catch (ExecutionException e) {
+        // an internal error; the other files can still be compiled
+        options.err.println("INTERNAL error compiling " + files.get(i) + ":");
+        e.getCause().printStackTrace(options.err);
+        failedFiles++;
+        continue;
+      }
+      if (result.context == null) {
+        options.err.println(result.failure);
+        failedFiles++;
+        continue;
+      }
+      result.context.diagnostics.flush(options.err);
+      int count = result.context.diagnostics.count();
+      if (count > 0 || result.context.status != 0) failedFiles++;
+      errors += count;
+      // the first file whose program failed decides it
+      if (status == 0) status = result.context.status;
+      results.add(result);
+    }
+    report(results, System.nanoTime() - start);
+
+    if (failedFiles > 0) {
+      options.err.print("" + errors + " error");
+      if (errors != 1) options.err.print('s');
+      options.err.println(" (" + failedFiles + " of " + files.size() + " files failed)");
+    }
+    if (status != 0) return status;
+    return errors > 0 ? 2 : failedFiles > 0 ? 1 : 0;
+  }
+
+  /* the files on the command line, with each directory replaced by the .lox files under it */
+  private List<String> files() throws IOException {
+    List<String> files = new ArrayList<>();
+    for (String file : options.files) {
+      Path path = options.resolve(file);
+      if (!Files.isDirectory(path)) {
+        files.add(file);
+        continue;
+      }
+      try (Stream<Path> walk = Files.walk(path)) {
+        walk.filter(found -> found.toString().endsWith(".lox") && Files.isRegularFile(found))
+          .sorted()
+          .forEach(found -> files.add(Paths.get(file).resolve(path.relativize(found)).toString()));
+      }
+    }
+    return files;
+  }
+
+  private Result compile(String file) {
+    long start = System.nanoTime();
+    CompilationContext context;
+    try {
+      context = new CompilationContext(Source.map(options.resolve(file), file), options, null, this);
+    } catch (NoSuchFileException e) {
+      return new Result(null, "File not found: " + file, 0);
+    } catch (IOException e) {
+      return new Result(null, "Could not read " + file + ": " + e.getMessage(), 0);
+    }
+    pipeline.run(context, context.source);
+    return new Result(context, null, System.nanoTime() - start);
+  }
+
+  private void report(List<Result> results, long total) {
+    if (options.timePasses || options.stats) {
+      int width = "total".length();
+      for (Result result : results) width = Math.max(width, result.context.source.name.length());
+      String format = "%-" + width + "s %10s %8s%n";
+      StringBuilder builder = new StringBuilder(String.format(format, "file", "wall ms", "errors"));
+      int errors = 0;
+      for (Result result : results) {
+        int count = result.context.diagnostics.count();
+        builder.append(String.format(format, result.context.source.name, milliseconds(result.nanos), count));
+        errors += count;
+      }
+      builder.append(String.format(format, "total", milliseconds(total), errors));
+      options.err.print(builder);
+    }
+    if (options.statsJson == null) return;
+    StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < results.size(); i++) {
+      if (i != 0) json.append(",\n ");
+      json.append(results.get(i).context.statistics.toJson());
+    }
+    try {
+      Files.write(options.resolve(options.statsJson), json.append("]\n").toString().getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      options.err.println("Could not write statistics to " + options.statsJson + ": " + e.getMessage());
+    }
+  }
+
+  private static String milliseconds(long nanos) {
+    return String.format("%.1f", nanos / 1e6);
+  }
+
+  private static class Result {
+    // null if the file couldn't be read, and then `failure` says why
+    final CompilationContext context;
+    final String failure;
+    final long nanos;
+
+    Result(CompilationContext context, String failure, long nanos) {
+      this.context = context;
+      this.failure = failure;
+      this.nanos = nanos;
+    }
+  }
+}
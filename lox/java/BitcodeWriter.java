@@ -0,0 +1,571 @@
+package lox.java;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.util.Map.entry;
+
+/*
+ * LLVM bitcode for a module Compiler built with IR.inMemory(), so the LLVM tools don't have to parse assembly.
+ *
+ * Like ClassWriter, just enough of the format for what Compiler emits. Every record is unabbreviated,
+ * and the module uses the older layout LLVM still reads: version 1 (operands relative to the instruction)
+ * with the names of globals in a value symbol table instead of a string table. Locals and blocks are unnamed.
+ *
+ * The types and constants have to come before the functions that use them, so we go through
+ * the functions once without writing anything to find them all.
+ * See https://llvm.org/docs/BitCodeFormat.html
+ */
+class BitcodeWriter {
+  private static final int MODULE_BLOCK = 8, CONSTANTS_BLOCK = 11, FUNCTION_BLOCK = 12,
+    VALUE_SYMTAB_BLOCK = 14, TYPE_BLOCK = 17;
+  private static final int MODULE_VERSION = 1, MODULE_GLOBALVAR = 7, MODULE_FUNCTION = 8;
+  private static final int TYPE_NUMENTRY = 1, TYPE_VOID = 2, TYPE_DOUBLE = 4, TYPE_INTEGER = 7,
+    TYPE_POINTER = 8, TYPE_ARRAY = 11, TYPE_FUNCTION = 21;
+  private static final int CST_SETTYPE = 1, CST_NULL = 2, CST_INTEGER = 4, CST_FLOAT = 6, CST_STRING = 8;
+  private static final int INST_DECLAREBLOCKS = 1, INST_BINOP = 2, INST_CAST = 3, INST_RET = 10,
+    INST_BR = 11, INST_UNREACHABLE = 15, INST_PHI = 16, INST_ALLOCA = 19, INST_LOAD = 20,
+    INST_CMP2 = 28, INST_VSELECT = 29, INST_CALL = 34, INST_GEP = 43, INST_STORE = 44;
+  private static final int VST_ENTRY = 1;
+  private static final int LINKAGE_EXTERNAL = 0, LINKAGE_PRIVATE = 9;
+  // flags: the record has the allocated type (not the pointer), and the function type of the call
+  private static final int ALLOCA_EXPLICIT_TYPE = 1 << 6, CALL_EXPLICIT_TYPE = 1 << 15;
+
+  // binary operators, casts and comparison predicates; floating point uses the integer opcodes
+  private static final Map<String, Integer> opcodes = Map.ofEntries(
+    entry("add", 0), entry("sub", 1), entry("mul", 2), entry("sdiv", 4), entry("srem", 6),
+    entry("and", 10), entry("or", 11), entry("xor", 12),
+    entry("fadd", 0), entry("fsub", 1), entry("fmul", 2), entry("fdiv", 4), entry("frem", 6),
+    entry("zext", 1), entry("fptosi", 4), entry("uitofp", 5), entry("sitofp", 6),
+    entry("fcmp oeq", 1), entry("fcmp ogt", 2), entry("fcmp oge", 3), entry("fcmp olt", 4),
+    entry("fcmp ole", 5), entry("fcmp one", 6),
+    entry("icmp eq", 32), entry("icmp ne", 33), entry("icmp sgt", 38), entry("icmp sge", 39),
+    entry("icmp slt", 40), entry("icmp sle", 41)
+  );
+
+  // e.g. "declare i32 @printf(i8* nocapture, ...) nounwind"
+  private static final Pattern DECLARATION = Pattern.compile("declare (\\S+) (@\\S+?)\\((.*)\\).*");
+
+  private static final IR.Value ONE = new IR.Value("i32", "1"), ZERO = new IR.Value("i32", "0"),
+    ZERO_64 = new IR.Value("i64", "0");
+
+  private final IR module;
+  private final Bitstream out = new Bitstream();
+  // each is the code followed by the operands; a type comes after the types it's made of
+  private final List<long[]> types = new ArrayList<>();
+  private final Map<String, Integer> typeIds = new HashMap<>();
+  private final List<IR.Value> constants = new ArrayList<>();
+  private final Map<String, Integer> constantIds = new HashMap<>();
+  // value ids of the globals, then the functions; the constants come right after
+  private final Map<String, Integer> globalIds = new LinkedHashMap<>();
+  // the function types of the declarations
+  private final List<String> declarations = new ArrayList<>();
+  private int firstConstant;
+
+  // numbering of the function being written
+  private final Map<String, Integer> locals = new HashMap<>();
+  private final Map<IR.Block, Integer> blocks = new HashMap<>();
+  // the value id of the current instruction, if it has a value
+  private int next;
+  // true while looking for types and constants
+  private boolean scanning = false;
+
+  // the record being built
+  private long[] record = new long[16];
+  private int code, length;
+
+  BitcodeWriter(IR module) {
+    this.module = module;
+  }
+
+  byte[] toByteArray() {
+    for (IR.Global global : module.globals) {
+      globalIds.put(global.name, globalIds.size());
+    }
+    for (String declaration : module.declarations) {
+      Matcher matcher = DECLARATION.matcher(declaration);
+      if (!matcher.matches()) throw new IllegalArgumentException("Unknown declaration " + declaration);
+      StringBuilder parameters = new StringBuilder();
+      for (String parameter : matcher.group(3).split(", ")) {
+        // just the type, not the attributes
+        if (parameters.length() > 0) parameters.append(", ");
+        parameters.append(parameter.split(" ")[0]);
+      }
+      declarations.add(matcher.group(1) + " (" + parameters + ")");
+      globalIds.put(matcher.group(2), globalIds.size());
+    }
+    for (IR.Function function : module.functions) {
+      globalIds.put(function.name, globalIds.size());
+    }
+    firstConstant = globalIds.size();
+
+    for (IR.Global global : module.globals) {
+      type(global.contents);
+      constant(new IR.Value(global.contents, global.initializer));
+    }
+    for (String declaration : declarations) {
+      type(declaration);
+    }
+    scanning = true;
+    for (IR.Function function : module.functions) {
+      type(signature(function));
+      function(function);
+    }
+    scanning = false;
+
+    out.magic();
+    out.enter(MODULE_BLOCK);
+    start(MODULE_VERSION);
+    add(1);
+    emit();
+    writeTypes();
+    for (IR.Global global : module.globals) {
+      start(MODULE_GLOBALVAR);
+      add(type(global.contents));
+      // bit 1: the type is the contents, not the pointer
+      add((global.linkage.contains("constant") ? 1 : 0) | 2);
+      add(constant(new IR.Value(global.contents, global.initializer)) + 1);
+      add(global.linkage.startsWith("private") ? LINKAGE_PRIVATE : LINKAGE_EXTERNAL);
+      // alignment, section, visibility, thread local
+      add(0);
+      add(0);
+      add(0);
+      add(0);
+      add(global.linkage.contains("unnamed_addr") ? 1 : 0);
+      emit();
+    }
+    for (String declaration : declarations) {
+      writeFunction(declaration, true);
+    }
+    for (IR.Function function : module.functions) {
+      writeFunction(signature(function), false);
+    }
+    writeConstants();
+    writeNames();
+    for (IR.Function function : module.functions) {
+      function(function);
+    }
+    out.end();
+    return out.toByteArray();
+  }
+
+  private void writeTypes() {
+    out.enter(TYPE_BLOCK);
+    start(TYPE_NUMENTRY);
+    add(types.size());
+    emit();
+    for (long[] type : types) {
+      start((int)type[0]);
+      for (int i = 1; i < type.length; i++) add(type[i]);
+      emit();
+    }
+    out.end();
+  }
+
+  private void writeFunction(String type, boolean declaration) {
+    start(MODULE_FUNCTION);
+    add(type(type));
+    // calling convention
+    add(0);
+    add(declaration ? 1 : 0);
+    add(LINKAGE_EXTERNAL);
+    // attributes, alignment, section, visibility
+    add(0);
+    add(0);
+    add(0);
+    add(0);
+    emit();
+  }
+
+  private void writeConstants() {
+    out.enter(CONSTANTS_BLOCK);
+    String type = null;
+    for (IR.Value constant : constants) {
+      if (!constant.type.equals(type)) {
+        type = constant.type;
+        start(CST_SETTYPE);
+        add(type(type));
+        emit();
+      }
+      if (constant.name.equals("zeroinitializer")) {
+        start(CST_NULL);
+      } else if (type.equals("double")) {
+        start(CST_FLOAT);
+        add(Double.doubleToRawLongBits(Double.parseDouble(constant.name)));
+      } else if (type.startsWith("[")) {
+        start(CST_STRING);
+        for (byte b : bytes(constant.name)) add(b & 0xff);
+      } else {
+        start(CST_INTEGER);
+        add(signed(Long.parseLong(constant.name)));
+      }
+      emit();
+    }
+    out.end();
+  }
+
+  private void writeNames() {
+    out.enter(VALUE_SYMTAB_BLOCK);
+    globalIds.forEach((name, id) -> {
+      start(VST_ENTRY);
+      add(id);
+      for (byte b : name.substring(1).getBytes(StandardCharsets.UTF_8)) add(b & 0xff);
+      emit();
+    });
+    out.end();
+  }
+
+  private void function(IR.Function function) {
+    // number everything first: phis can use values from further down
+    locals.clear();
+    blocks.clear();
+    int id = firstConstant + constants.size();
+    for (IR.Value parameter : function.parameters) {
+      locals.put(parameter.name, id++);
+    }
+    next = id;
+    for (IR.Block block : function.blocks) {
+      blocks.put(block, blocks.size());
+      for (IR.Instruction instruction : block.instructions) {
+        if (instruction.result != null) locals.put(instruction.result.name, id);
+        if (hasValue(instruction)) id++;
+      }
+    }
+
+    if (!scanning) out.enter(FUNCTION_BLOCK);
+    start(INST_DECLAREBLOCKS);
+    add(function.blocks.size());
+    emit();
+    for (IR.Block block : function.blocks) {
+      for (IR.Instruction instruction : block.instructions) {
+        instruction(instruction);
+        if (hasValue(instruction)) next++;
+      }
+    }
+    if (!scanning) out.end();
+  }
+
+  private void instruction(IR.Instruction instruction) {
+    if (instruction instanceof IR.Binary) {
+      IR.Binary binary = (IR.Binary)instruction;
+      start(binary.operator.startsWith("icmp") || binary.operator.startsWith("fcmp") ? INST_CMP2 : INST_BINOP);
+      addWithType(binary.left);
+      addRelative(binary.right);
+      add(opcodes.get(binary.operator));
+    } else if (instruction instanceof IR.Cast) {
+      IR.Cast cast = (IR.Cast)instruction;
+      start(INST_CAST);
+      addWithType(cast.value);
+      add(type(cast.result.type));
+      add(opcodes.get(cast.operator));
+    } else if (instruction instanceof IR.Alloca) {
+      String pointer = instruction.result.type;
+      start(INST_ALLOCA);
+      add(type(pointer.substring(0, pointer.length() - 1)));
+      // one element; not relative
+      add(type(ONE.type));
+      add(value(ONE));
+      add(ALLOCA_EXPLICIT_TYPE);
+    } else if (instruction instanceof IR.Load) {
+      start(INST_LOAD);
+      addWithType(((IR.Load)instruction).pointer);
+      add(type(instruction.result.type));
+      // alignment, volatile
+      add(0);
+      add(0);
+    } else if (instruction instanceof IR.Store) {
+      IR.Store store = (IR.Store)instruction;
+      start(INST_STORE);
+      addWithType(store.pointer);
+      addWithType(store.value);
+      add(0);
+      add(0);
+    } else if (instruction instanceof IR.ElementPointer) {
+      IR.Global array = ((IR.ElementPointer)instruction).array;
+      start(INST_GEP);
+      // not inbounds
+      add(0);
+      add(type(array.contents));
+      addWithType(array);
+      addWithType(ZERO);
+      addWithType(ZERO_64);
+    } else if (instruction instanceof IR.Select) {
+      IR.Select select = (IR.Select)instruction;
+      start(INST_VSELECT);
+      addWithType(select.ifTrue);
+      addRelative(select.ifFalse);
+      addWithType(select.condition);
+    } else if (instruction instanceof IR.Call) {
+      IR.Call call = (IR.Call)instruction;
+      String type = signature(call);
+      int fixed = parameters(type).size();
+      start(INST_CALL);
+      // attributes
+      add(0);
+      add(CALL_EXPLICIT_TYPE);
+      add(type(type));
+      add(relative(globalIds.get(call.callee)));
+      for (int i = 0; i < call.arguments.size(); i++) {
+        // varargs need their type
+        if (i < fixed) addRelative(call.arguments.get(i));
+        else addWithType(call.arguments.get(i));
+      }
+    } else if (instruction instanceof IR.Phi) {
+      IR.Phi phi = (IR.Phi)instruction;
+      start(INST_PHI);
+      add(type(phi.result.type));
+      for (int i = 0; i < phi.values.size(); i++) {
+        add(signed(next - value(phi.values.get(i))));
+        add(blocks.get(phi.blocks.get(i)));
+      }
+    } else if (instruction instanceof IR.Branch) {
+      start(INST_BR);
+      add(blocks.get(((IR.Branch)instruction).target));
+    } else if (instruction instanceof IR.CondBranch) {
+      IR.CondBranch branch = (IR.CondBranch)instruction;
+      start(INST_BR);
+      add(blocks.get(branch.ifTrue));
+      add(blocks.get(branch.ifFalse));
+      addRelative(branch.condition);
+    } else if (instruction instanceof IR.Return) {
+      IR.Value value = ((IR.Return)instruction).value;
+      start(INST_RET);
+      if (value != null) addWithType(value);
+    } else if (instruction instanceof IR.Unreachable) {
+      start(INST_UNREACHABLE);
+    } else {
+      throw new IllegalArgumentException("Unknown instruction " + instruction.getClass().getSimpleName());
+    }
+    emit();
+  }
+
+  /* calls without a name still have a value, unless they're void */
+  private static boolean hasValue(IR.Instruction instruction) {
+    if (instruction instanceof IR.Call) return !((IR.Call)instruction).returnType.equals("void");
+    return instruction.result != null;
+  }
+
+  private long value(IR.Value value) {
+    switch (value.name.charAt(0)) {
+      case '%':
+        Integer id = locals.get(value.name);
+        // e.g. a function using a variable of main, which the assembly would fail on too
+        if (id == null) throw new IllegalArgumentException("Use of undefined value " + value.name);
+        return id;
+      case '@': return globalIds.get(value.name);
+      default: return constant(value);
+    }
+  }
+
+  /* the value id of a constant, adding it if it's new */
+  private int constant(IR.Value value) {
+    String key = value.type + ' ' + value.name;
+    Integer index = constantIds.get(key);
+    if (index == null) {
+      type(value.type);
+      index = constants.size();
+      constants.add(value);
+      constantIds.put(key, index);
+    }
+    return firstConstant + index;
+  }
+
+  /* the id of a type in LLVM syntax, adding it and what it's made of if it's new */
+  private int type(String type) {
+    Integer id = typeIds.get(type);
+    if (id != null) return id;
+    long[] entry;
+    if (type.endsWith("*")) {
+      entry = new long[] {TYPE_POINTER, type(type.substring(0, type.length() - 1)), 0};
+    } else if (type.startsWith("[")) {
+      // [n x element]
+      int x = type.indexOf(" x ");
+      entry = new long[] {TYPE_ARRAY, Long.parseLong(type.substring(1, x)),
+        type(type.substring(x + 3, type.length() - 1))};
+    } else if (type.endsWith(")")) {
+      // return (parameter, ...)
+      List<String> parameters = parameters(type);
+      entry = new long[3 + parameters.size()];
+      entry[0] = TYPE_FUNCTION;
+      entry[1] = type.endsWith("...)") ? 1 : 0;
+      entry[2] = type(type.substring(0, type.indexOf(" (")));
+      for (int i = 0; i < parameters.size(); i++) entry[3 + i] = type(parameters.get(i));
+    } else if (type.equals("void")) {
+      entry = new long[] {TYPE_VOID};
+    } else if (type.equals("double")) {
+      entry = new long[] {TYPE_DOUBLE};
+    } else if (type.startsWith("i")) {
+      entry = new long[] {TYPE_INTEGER, Integer.parseInt(type.substring(1))};
+    } else {
+      throw new IllegalArgumentException("Unknown type " + type);
+    }
+    typeIds.put(type, types.size());
+    types.add(entry);
+    return types.size() - 1;
+  }
+
+  /* the fixed parameters of a function type */
+  private static List<String> parameters(String type) {
+    String list = type.substring(type.indexOf(" (") + 2, type.length() - 1);
+    List<String> result = new ArrayList<>();
+    if (list.isEmpty()) return result;
+    for (String parameter : list.split(", ")) {
+      if (!parameter.equals("...")) result.add(parameter);
+    }
+    return result;
+  }
+
+  private static String signature(IR.Function function) {
+    return signature(function.returnType, function.parameters);
+  }
+
+  private static String signature(IR.Call call) {
+    if (call.signature != null) return call.returnType + ' ' + call.signature;
+    return signature(call.returnType, call.arguments);
+  }
+
+  private static String signature(String returnType, List<IR.Value> parameters) {
+    StringBuilder result = new StringBuilder(returnType).append(" (");
+    for (int i = 0; i < parameters.size(); i++) {
+      if (i > 0) result.append(", ");
+      result.append(parameters.get(i).type);
+    }
+    return result.append(')').toString();
+  }
+
+  /* the contents of c"..." */
+  private static byte[] bytes(String initializer) {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    for (int i = 2; i < initializer.length() - 1; i++) {
+      char c = initializer.charAt(i);
+      if (c == '\\') {
+        result.write(Integer.parseInt(initializer.substring(i + 1, i + 3), 16));
+        i += 2;
+      } else {
+        result.write(c);
+      }
+    }
+    return result.toByteArray();
+  }
+
+  /* the sign goes in the lowest bit, so small negative numbers stay small */
+  private static long signed(long value) {
+    return value >= 0 ? value << 1 : (-value << 1) | 1;
+  }
+
+  /* how far back `id` is from the current instruction; forward references wrap around */
+  private long relative(long id) {
+    return (next - id) & 0xffffffffL;
+  }
+
+  private void addRelative(IR.Value value) {
+    add(relative(value(value)));
+  }
+
+  /* the type is only there if the reader can't know it yet */
+  private void addWithType(IR.Value value) {
+    long id = value(value);
+    add(relative(id));
+    if (id >= next) add(type(value.type));
+  }
+
+  private void start(int code) {
+    this.code = code;
+    length = 0;
+  }
+
+  private void add(long operand) {
+    if (length == record.length) record = Arrays.copyOf(record, length * 2);
+    record[length++] = operand;
+  }
+
+  private void emit() {
+    if (!scanning) out.record(code, record, length);
+  }
+
+  /*
+   * The bitstream container: fields are packed from the least significant bit of each byte,
+   * and a block starts with its length in 32-bit words.
+   * Without abbreviations, abbreviation ids only go up to 3, so they always take 2 bits.
+   */
+  private static class Bitstream {
+    private static final int END_BLOCK = 0, ENTER_SUBBLOCK = 1, UNABBREV_RECORD = 3, ABBREV_WIDTH = 2;
+    private byte[] bytes = new byte[4096];
+    private int size = 0;
+    // fewer than 8 bits that aren't in `bytes` yet
+    private long bits = 0;
+    private int bitCount = 0;
+    // where the lengths of the open blocks go
+    private final Deque<Integer> blocks = new ArrayDeque<>();
+
+    void magic() {
+      fixed('B', 8);
+      fixed('C', 8);
+      fixed(0xdec0, 16);
+    }
+
+    void enter(int id) {
+      fixed(ENTER_SUBBLOCK, ABBREV_WIDTH);
+      vbr(id, 8);
+      vbr(ABBREV_WIDTH, 4);
+      align();
+      blocks.push(size);
+      fixed(0, 32);
+    }
+
+    void end() {
+      fixed(END_BLOCK, ABBREV_WIDTH);
+      align();
+      int start = blocks.pop(), words = (size - start - 4) / 4;
+      for (int i = 0; i < 4; i++) bytes[start + i] = (byte)(words >>> 8 * i);
+    }
+
+    void record(int code, long[] operands, int length) {
+      fixed(UNABBREV_RECORD, ABBREV_WIDTH);
+      vbr(code, 6);
+      vbr(length, 6);
+      for (int i = 0; i < length; i++) vbr(operands[i], 6);
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(bytes, size);
+    }
+
+    /* `value` in chunks of width - 1 bits, with the high bit set on all but the last */
+    private void vbr(long value, int width) {
+      long high = 1L << (width - 1);
+      while (Long.compareUnsigned(value, high) >= 0) {
+        fixed(value & (high - 1) | high, width);
+        value >>>= width - 1;
+      }
+      fixed(value, width);
+    }
+
+    private void fixed(long value, int width) {
+      bits |= (value & ((1L << width) - 1)) << bitCount;
+      bitCount += width;
+      while (bitCount >= 8) {
+        if (size == bytes.length) bytes = Arrays.copyOf(bytes, size * 2);
+        bytes[size++] = (byte)bits;
+        bits >>>= 8;
+        bitCount -= 8;
+      }
+    }
+
+    /* to a 32-bit boundary */
+    private void align() {
+      if (bitCount > 0) fixed(0, 8 - bitCount);
+      while (size % 4 != 0) fixed(0, 8);
+    }
+  }
+}
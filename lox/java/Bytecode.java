@@ -0,0 +1,110 @@
+package lox.java;
+
+/*
+ * A program compiled for the VM: one Function per Lox function,
+ * with the top level at index 0, and constant pools shared between them.
+ *
+ * Every instruction is a single int, the opcode in the low 8 bits
+ * and its operand (a local, constant, function or jump target) in the rest.
+ * Opcodes are specialised by type, so the VM never has to check what it's adding:
+ * ints, doubles and booleans (0 or 1) live unboxed in a long[] stack,
+ * with a parallel Object[] for strings.
+ */
+final class Bytecode {
+  static final int
+    // push a value: null, the numbers[operand] bits, strings[operand], true, false
+    NIL = 0, CONST = 1, SCONST = 2, TRUE = 3, FALSE = 4,
+    // locals are relative to the current frame, globals are the locals of the top level
+    LOAD = 5, ALOAD = 6, STORE = 7, ASTORE = 8,
+    GLOAD = 9, GALOAD = 10, GSTORE = 11, GASTORE = 12,
+    POP = 13, DUP = 14,
+    IADD = 15, ISUB = 16, IMUL = 17, IDIV = 18, IREM = 19,
+    IAND = 20, IOR = 21, IXOR = 22, INEG = 23,
+    IEQ = 24, INE = 25, ILT = 26, ILE = 27, IGT = 28, IGE = 29,
+    DADD = 30, DSUB = 31, DMUL = 32, DDIV = 33, DREM = 34, DNEG = 35,
+    DEQ = 36, DNE = 37, DLT = 38, DLE = 39, DGT = 40, DGE = 41,
+    // booleans are 1-bit integers; I2B truncates the result of int arithmetic
+    BNOT = 42, I2B = 43, I2D = 44, D2I = 45,
+    SEQ = 46, SNE = 47, SCONCAT = 48,
+    // jump to the operand; the conditional jumps pop their condition
+    JUMP = 49, JUMP_IF_FALSE = 50, JUMP_IF_TRUE = 51,
+    CALL = 52, RETURN = 53, HALT = 54,
+    PRINT_INT = 55, PRINT_DOUBLE = 56, PRINT_BOOL = 57, PRINT_STRING = 58, PRINT_NULL = 59;
+
+  private static final String[] NAMES = {
+    "NIL", "CONST", "SCONST", "TRUE", "FALSE",
+    "LOAD", "ALOAD", "STORE", "ASTORE", "GLOAD", "GALOAD", "GSTORE", "GASTORE",
+    "POP", "DUP",
+    "IADD", "ISUB", "IMUL", "IDIV", "IREM", "IAND", "IOR", "IXOR", "INEG",
+    "IEQ", "INE", "ILT", "ILE", "IGT", "IGE",
+    "DADD", "DSUB", "DMUL", "DDIV", "DREM", "DNEG",
+    "DEQ", "DNE", "DLT", "DLE", "DGT", "DGE",
+    "BNOT", "I2B", "I2D", "D2I",
+    "SEQ", "SNE", "SCONCAT",
+    "JUMP", "JUMP_IF_FALSE", "JUMP_IF_TRUE",
+    "CALL", "RETURN", "HALT",
+    "PRINT_INT", "PRINT_DOUBLE", "PRINT_BOOL", "PRINT_STRING", "PRINT_NULL",
+  };
+
+  final Function[] functions;
+  // ints and doubles, as raw bits
+  final long[] numbers;
+  final String[] strings;
+
+  Bytecode(Function[] functions, long[] numbers, String[] strings) {
+    this.functions = functions;
+    this.numbers = numbers;
+    this.strings = strings;
+  }
+
+  static int opcode(int instruction) {
+    return instruction & 0xff;
+  }
+
+  static int operand(int instruction) {
+    return instruction >> 8;
+  }
+
+  static int instruction(int opcode, int operand) {
+    return opcode | operand << 8;
+  }
+
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    for (int f = 0; f < functions.length; f++) {
+      Function function = functions[f];
+      builder.append(f).append(": ").append(function.name)
+        .append(" (arity ").append(function.arity)
+        .append(", locals ").append(function.locals).append(")\n");
+      for (int pc = 0; pc < function.code.length; pc++) {
+        int instruction = function.code[pc];
+        builder.append(String.format("%6d  %s", pc, NAMES[opcode(instruction)]));
+        if (hasOperand(opcode(instruction))) builder.append(' ').append(operand(instruction));
+        builder.append('\n');
+      }
+    }
+    return builder.toString();
+  }
+
+  private static boolean hasOperand(int opcode) {
+    return (opcode >= CONST && opcode <= SCONST) || (opcode >= LOAD && opcode <= GASTORE)
+      || (opcode >= JUMP && opcode <= CALL);
+  }
+
+  static final class Function {
+    final String name;
+    final int arity, locals;
+    final int[] code;
+    // where each instruction came from, for runtime errors; -1 if unknown
+    final int[] lines, columns;
+
+    Function(String name, int arity, int locals, int[] code, int[] lines, int[] columns) {
+      this.name = name;
+      this.arity = arity;
+      this.locals = locals;
+      this.code = code;
+      this.lines = lines;
+      this.columns = columns;
+    }
+  }
+}
@@ -0,0 +1,390 @@
+package lox.java;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Map.entry;
+import static lox.java.Bytecode.*;
+import static lox.java.LoxType.*;
+
+/*
+ * Compiles the annotated AST to Bytecode for the VM.
+ *
+ * Every expression leaves exactly one value on the stack (void calls leave NIL).
+ * Each declaration gets a slot in the frame of the function it's declared in,
+ * keyed by its mangled id; the top level's slots double as globals.
+ * Functions can't yet capture the locals of an enclosing function.
+ */
+class BytecodeCompiler extends Pass<List<Stmt>, Bytecode>
+  implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+  private static final Map<Token.Type, Integer> intOperators = Map.ofEntries(
+    entry(Token.Type.PLUS, IADD), entry(Token.Type.MINUS, ISUB),
+    entry(Token.Type.STAR, IMUL), entry(Token.Type.SLASH, IDIV),
+    entry(Token.Type.PERCENT, IREM), entry(Token.Type.AMPERSAND, IAND),
+    entry(Token.Type.PIPE, IOR), entry(Token.Type.CARET, IXOR),
+    entry(Token.Type.EQUAL_EQUAL, IEQ), entry(Token.Type.BANG_EQUAL, INE),
+    entry(Token.Type.LESS, ILT), entry(Token.Type.LESS_EQUAL, ILE),
+    entry(Token.Type.GREATER, IGT), entry(Token.Type.GREATER_EQUAL, IGE)
+  ), doubleOperators = Map.ofEntries(
+    entry(Token.Type.PLUS, DADD), entry(Token.Type.MINUS, DSUB),
+    entry(Token.Type.STAR, DMUL), entry(Token.Type.SLASH, DDIV),
+    entry(Token.Type.PERCENT, DREM),
+    entry(Token.Type.EQUAL_EQUAL, DEQ), entry(Token.Type.BANG_EQUAL, DNE),
+    entry(Token.Type.LESS, DLT), entry(Token.Type.LESS_EQUAL, DLE),
+    entry(Token.Type.GREATER, DGT), entry(Token.Type.GREATER_EQUAL, DGE)
+  ), stringOperators = Map.of(
+    Token.Type.EQUAL_EQUAL, SEQ, Token.Type.BANG_EQUAL, SNE, Token.Type.PLUS, SCONCAT);
+
+  private final List<Bytecode.Function> functions = new ArrayList<>();
+  private final List<Long> numbers = new ArrayList<>();
+  private final Map<Long, Integer> numberIndex = new HashMap<>();
+  private final List<String> strings = new ArrayList<>();
+  private final Map<String, Integer> stringIndex = new HashMap<>();
+
+  // indexed by mangled id: the function a declaration belongs to and its slot there
+  private final int[] owners, slots;
+  // indexed by the mangled id of a function
+  private final LoxType[][] parameterTypes;
+  private FunctionBuilder current;
+  // break jumps waiting for the end of each enclosing loop, and where each loop starts
+  private final List<List<Integer>> breaks = new ArrayList<>();
+  private final List<Integer> loopStarts = new ArrayList<>();
+
+  BytecodeCompiler(CompilationContext context, List<Stmt> input) {
+    super(context, input);
+    int size = context.symbols.size();
+    owners = new int[size];
+    slots = new int[size];
+    parameterTypes = new LoxType[size][];
+  }
+
+  Bytecode runPass() {
+    current = new FunctionBuilder("<top level>", 0, 0);
+    functions.add(null);
+    for (Stmt stmt : input) {
+      stmt.accept(this);
+    }
+    emit(HALT);
+    functions.set(0, current.build());
+
+    long[] pool = new long[numbers.size()];
+    for (int i = 0; i < pool.length; i++) pool[i] = numbers.get(i);
+    return new Bytecode(functions.toArray(new Bytecode.Function[0]), pool, strings.toArray(new String[0]));
+  }
+
+  public Void visitStmt(Stmt.Expression stmt) {
+    stmt.expression.accept(this);
+    emit(POP);
+    return null;
+  }
+
+  public Void visitStmt(Stmt.Print stmt) {
+    stmt.expression.accept(this);
+    switch (stmt.expression.type) {
+      case INT: emit(PRINT_INT); break;
+      case DOUBLE: emit(PRINT_DOUBLE); break;
+      case BOOL: emit(PRINT_BOOL); break;
+      case STRING: emit(PRINT_STRING); break;
+      default: emit(PRINT_NULL);
+    }
+    return null;
+  }
+
+  public Void visitStmt(Stmt.Var var) {
+    declare(var.identifier);
+    if (var.equals == null) {
+      zero(var.identifier.type);
+      store(var.identifier);
+    } else {
+      var.equals.accept(this);
+      emit(POP);
+    }
+    return null;
+  }
+
+  public Void visitStmt(Stmt.Block block) {
+    for (Stmt stmt : block.statements) {
+      stmt.accept(this);
+    }
+    return null;
+  }
+
+  public Void visitStmt(Stmt.If stmt) {
+    stmt.condition.accept(this);
+    int otherwise = emitJump(JUMP_IF_FALSE);
+    stmt.then.accept(this);
+    if (stmt.otherwise == null) {
+      patch(otherwise);
+    } else {
+      int end = emitJump(JUMP);
+      patch(otherwise);
+      stmt.otherwise.accept(this);
+      patch(end);
+    }
+    return null;
+  }
+
+  public Void visitStmt(Stmt.While stmt) {
+    int start = current.size;
+    stmt.condition.accept(this);
+    int end = emitJump(JUMP_IF_FALSE);
+
+    loopStarts.add(start);
+    breaks.add(new ArrayList<>());
+    stmt.body.accept(this);
+    emit(JUMP, start);
+    patch(end);
+    for (int jump : breaks.remove(breaks.size() - 1)) patch(jump);
+    loopStarts.remove(loopStarts.size() - 1);
+    return null;
+  }
+
+  public Void visitStmt(Stmt.LoopControl keyword) {
+    // Annotate already checked that we're inside a loop
+    if (keyword.token.type == Token.Type.BREAK) breaks.get(breaks.size() - 1).add(emitJump(JUMP));
+    else emit(JUMP, loopStarts.get(loopStarts.size() - 1));
+    return null;
+  }
+
+  public Void visitStmt(Stmt.Function func) {
+    // functions are called by index, not loaded from a slot
+    int index = functions.size();
+    owners[func.identifier.id] = current.index;
+    slots[func.identifier.id] = index;
+    functions.add(null);
+    LoxType[] parameters = new LoxType[func.arguments.size()];
+    for (int i = 0; i < parameters.length; i++) parameters[i] = func.arguments.get(i).type;
+    parameterTypes[func.identifier.id] = parameters;
+
+    // break and continue always refer to the innermost loop, which can't be outside the function
+    FunctionBuilder enclosing = current;
+    current = new FunctionBuilder(context.symbols.name(func.identifier.id), parameters.length, index);
+    for (Expr.Symbol argument : func.arguments) {
+      declare(argument);
+    }
+    for (Stmt stmt : func.body.statements) {
+      stmt.accept(this);
+    }
+    // Annotate only checks that there is a return, not that every path reaches it
+    zero(func.identifier.type);
+    emit(RETURN);
+
+    functions.set(index, current.build());
+    current = enclosing;
+    return null;
+  }
+
+  public Void visitStmt(Stmt.Return stmt) {
+    if (stmt.value == null) emit(NIL);
+    else stmt.value.accept(this);
+    emit(RETURN);
+    return null;
+  }
+
+  public Void visitExpr(Expr.Literal expr) {
+    if (expr.type == BOOL) emit((boolean)expr.value ? TRUE : FALSE);
+    else if (expr.type == INT) emit(CONST, number((long)(int)expr.value));
+    else if (expr.type == DOUBLE) emit(CONST, number(Double.doubleToRawLongBits((double)expr.value)));
+    else if (expr.type == STRING) emit(SCONST, string((String)expr.value));
+    else emit(NIL);
+    return null;
+  }
+
+  public Void visitExpr(Expr.Grouping expr) {
+    return expr.expression.accept(this);
+  }
+
+  public Void visitExpr(Expr.Symbol symbol) {
+    int owner = owner(symbol), slot = slots[symbol.id];
+    boolean reference = symbol.type == STRING;
+    if (owner == current.index) emit(reference ? ALOAD : LOAD, slot, symbol.token);
+    else emit(reference ? GALOAD : GLOAD, slot, symbol.token);
+    return null;
+  }
+
+  public Void visitExpr(Expr.Assign expr) {
+    convert(expr.rvalue, expr.lvalue.type);
+    emit(DUP);
+    store(expr.lvalue);
+    // Annotate types the assignment as the promoted type of both sides
+    convert(expr.lvalue.type, expr.type);
+    return null;
+  }
+
+  public Void visitExpr(Expr.Unary expr) {
+    expr.right.accept(this);
+    if (expr.token.type == Token.Type.BANG) emit(BNOT);
+    else emit(expr.type == DOUBLE ? DNEG : INEG, 0, expr.token);
+    return null;
+  }
+
+  public Void visitExpr(Expr.Logical expr) {
+    expr.left.accept(this);
+    int shortCircuit = emitJump(expr.token.type == Token.Type.OR ? JUMP_IF_TRUE : JUMP_IF_FALSE);
+    expr.right.accept(this);
+    int end = emitJump(JUMP);
+    patch(shortCircuit);
+    emit(expr.token.type == Token.Type.OR ? TRUE : FALSE);
+    patch(end);
+    return null;
+  }
+
+  public Void visitExpr(Expr.Binary expr) {
+    if (expr.token.type == Token.Type.COMMA) {
+      expr.left.accept(this);
+      emit(POP);
+      return expr.right.accept(this);
+    }
+
+    LoxType operands = operands(expr.left.type, expr.right.type);
+    convert(expr.left, operands);
+    convert(expr.right, operands);
+
+    Integer opcode = null;
+    if (operands == INT || operands == BOOL) opcode = intOperators.get(expr.token.type);
+    else if (operands == DOUBLE) opcode = doubleOperators.get(expr.token.type);
+    else if (operands == STRING) opcode = stringOperators.get(expr.token.type);
+    else if (expr.token.type == Token.Type.EQUAL_EQUAL || expr.token.type == Token.Type.BANG_EQUAL) {
+      // values of different types are never equal
+      emit(POP);
+      emit(POP);
+      emit(expr.token.type == Token.Type.EQUAL_EQUAL ? FALSE : TRUE);
+      return null;
+    }
+
+    if (opcode == null) {
+      error(expr.token, "Illegal operator '" + expr.token.lexeme + "' for type " + operands);
+      return null;
+    }
+    emit(opcode, 0, expr.token);
+    // arithmetic on booleans wraps around like any other 1-bit integer
+    if (operands == BOOL && expr.type == BOOL && opcode < IEQ) emit(I2B);
+    return null;
+  }
+
+  public Void visitExpr(Expr.Call call) {
+    LoxType[] parameters = parameterTypes[call.callee.id];
+    for (int i = 0; i < call.arguments.size(); i++) {
+      // Annotate doesn't check argument types, so convert as if assigning
+      convert(call.arguments.get(i), parameters[i]);
+    }
+    emit(CALL, slots[call.callee.id], call.token);
+    return null;
+  }
+
+  private void declare(Expr.Symbol symbol) {
+    owners[symbol.id] = current.index;
+    slots[symbol.id] = current.locals++;
+  }
+
+  private int owner(Expr.Symbol symbol) {
+    int owner = owners[symbol.id];
+    if (owner != current.index && owner != 0) {
+      error(symbol.token, "INTERNAL error: closures not implemented; '"
+          + symbol.token.lexeme + "' belongs to an enclosing function");
+    }
+    return owner;
+  }
+
+  private void store(Expr.Symbol symbol) {
+    int owner = owner(symbol), slot = slots[symbol.id];
+    boolean reference = symbol.type == STRING;
+    if (owner == current.index) emit(reference ? ASTORE : STORE, slot);
+    else emit(reference ? GASTORE : GSTORE, slot);
+  }
+
+  /* emit `expr`, then convert its value to `type` */
+  private void convert(Expr expr, LoxType type) {
+    expr.accept(this);
+    convert(expr.type, type);
+  }
+
+  private void convert(LoxType from, LoxType to) {
+    if (to == DOUBLE && (from == INT || from == BOOL)) emit(I2D);
+    else if ((to == INT || to == BOOL) && from == DOUBLE) emit(D2I);
+  }
+
+  private void zero(LoxType type) {
+    if (type == BOOL) emit(FALSE);
+    else if (type == INT || type == DOUBLE) emit(CONST, number(0));
+    else if (type == STRING) emit(SCONST, string(""));
+    else emit(NIL);
+  }
+
+  /* the type both operands are promoted to, or null if they can't be */
+  private static LoxType operands(LoxType left, LoxType right) {
+    if (left == right) return left;
+    if (left == STRING || left == VOID || right == STRING || right == VOID) return null;
+    return left.compareTo(right) > 0 ? left : right;
+  }
+
+  private int number(long bits) {
+    return numberIndex.computeIfAbsent(bits, b -> {
+      numbers.add(b);
+      return numbers.size() - 1;
+    });
+  }
+
+  private int string(String value) {
+    return stringIndex.computeIfAbsent(value, s -> {
+      strings.add(s);
+      return strings.size() - 1;
+    });
+  }
+
+  private void emit(int opcode) {
+    emit(opcode, 0, null);
+  }
+
+  private void emit(int opcode, int operand) {
+    emit(opcode, operand, null);
+  }
+
+  private void emit(int opcode, int operand, Token token) {
+    current.add(instruction(opcode, operand), token);
+  }
+
+  /* emit a jump to be patched later, returning where it is */
+  private int emitJump(int opcode) {
+    emit(opcode, 0);
+    return current.size - 1;
+  }
+
+  /* point a jump at the next instruction */
+  private void patch(int jump) {
+    current.code[jump] = instruction(opcode(current.code[jump]), current.size);
+  }
+
+  private class FunctionBuilder {
+    final String name;
+    final int arity, index;
+    int locals = 0, size = 0;
+    int[] code = new int[64], lines = new int[64], columns = new int[64];
+
+    FunctionBuilder(String name, int arity, int index) {
+      this.name = name;
+      this.arity = arity;
+      this.index = index;
+    }
+
+    void add(int instruction, Token token) {
+      if (size == code.length) {
+        code = Arrays.copyOf(code, size * 2);
+        lines = Arrays.copyOf(lines, size * 2);
+        columns = Arrays.copyOf(columns, size * 2);
+      }
+      code[size] = instruction;
+      lines[size] = token == null ? -1 : token.line;
+      columns[size] = token == null ? -1 : token.column;
+      size++;
+    }
+
+    Bytecode.Function build() {
+      return new Bytecode.Function(name, arity, locals,
+          Arrays.copyOf(code, size), Arrays.copyOf(lines, size), Arrays.copyOf(columns, size));
+    }
+  }
+}
@@ -0,0 +1,157 @@
+package lox.java;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/*
+ * The compilation cache, for --cache=<dir>.
+ *
+ * The module Writer wrote, the module after Optimize and the executable Linker made
+ * are kept in <dir>/<key>/, where the key is a hash of everything that decides them:
+ * the source text, the options that change the generated code, and the compiler's own classes.
+ * An unchanged file skips as much of the pipeline as is cached; all of it if the executable is.
+ *
+ * That only works because compiling is deterministic. Annotate mangles names by counting
+ * declarations, and nothing in the output depends on the time, the file name or hash order.
+ * Files are written under a temporary name and then moved into place, so compilations running
+ * at once (a Batch, or several jlox) at worst do the same work twice. Nothing is ever evicted.
+ */
+final class Cache {
+  static final String MODULE = "module", OPTIMIZED = "optimized", EXECUTABLE = "executable";
+
+  private Cache() {}
+
+  /* `pipeline`, unless the cache has the file it makes; `stage` is what the cache calls it */
+  static <Accept> Pipeline<Accept, String> cached(String stage, Pipeline<Accept, String> pipeline) {
+    return (context, input) -> {
+      if (context.options.cache == null) return pipeline.run(context, input);
+      Path cached = context.options.resolve(context.options.cache).resolve(key(context)).resolve(stage);
+      if (Files.exists(cached)) {
+        try {
+          String result = restore(context, stage, cached);
+          context.statistics.count("cacheHits", 1);
+          context.options.err.println("Using cached " + stage + " " + cached);
+          return result;
+        } catch (IOException e) {
+          // as if it weren't there
+        }
+      }
+      context.statistics.count("cacheMisses", 1);
+      String result = pipeline.run(context, input);
+      if (result != null && !context.hadError()) store(context, context.options.resolve(result), cached);
+      return result;
+    };
+  }
+
+  /* copy a cached file to where the stage would have written it, since Optimize works in place */
+  private static String restore(CompilationContext context, String stage, Path cached) throws IOException {
+    if (stage.equals(EXECUTABLE)) {
+      String executable = Linker.executable(context);
+      Files.copy(cached, context.options.resolve(executable),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+      return executable;
+    }
+    // the same names as Writer, so the tools see the same extensions
+    Path copy = context.options.bitcode ? Files.createTempFile("lox-llvm-bitcode", ".bc")
+      : Files.createTempFile("lox-llvm-asm", ".ll");
+    Files.copy(cached, copy, StandardCopyOption.REPLACE_EXISTING);
+    return copy.toString();
+  }
+
+  private static void store(CompilationContext context, Path result, Path cached) {
+    Path temporary = null;
+    try {
+      Files.createDirectories(cached.getParent());
+      temporary = Files.createTempFile(cached.getParent(), cached.getFileName().toString(), null);
+      Files.copy(result, temporary, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+      Files.move(temporary, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      context.options.err.println("Could not cache " + result + ": " + e.getMessage());
+      try {
+        if (temporary != null) Files.deleteIfExists(temporary);
+      } catch (IOException ignored) {
+        // it's only a stray file in the cache
+      }
+    }
+  }
+
+  private static String key(CompilationContext context) {
+    MessageDigest digest = sha256();
+    digest.update(Version.DIGEST);
+    // only the options that change the generated code
+    String options = (context.options.ssa ? "ssa " : "") + (context.options.bitcode ? "bitcode " : "");
+    digest.update(options.getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) 0);
+    update(digest, context.source);
+    StringBuilder key = new StringBuilder();
+    for (byte b : digest.digest()) key.append(String.format("%02x", b));
+    return key.toString();
+  }
+
+  /* the text as UTF-8, a chunk at a time, so a mapped source isn't copied into a String first */
+  private static void update(MessageDigest digest, CharSequence text) {
+    // the same bytes String.getBytes would give
+    CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    CharBuffer in = CharBuffer.wrap(text);
+    ByteBuffer out = ByteBuffer.allocate(8192);
+    boolean done;
+    do {
+      done = encoder.encode(in, out, true).isUnderflow();
+      if (done) encoder.flush(out);
+      out.flip();
+      digest.update(out);
+      out.clear();
+    } while (!done);
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("every JVM has SHA-256", e);
+    }
+  }
+
+  /* the compiler itself, so a new build never uses what an old one cached; computed once */
+  private static class Version {
+    static final byte[] DIGEST = digestClasses();
+
+    private static byte[] digestClasses() {
+      MessageDigest digest = sha256();
+      try {
+        Path location = Paths.get(Cache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        if (Files.isDirectory(location)) {
+          List<Path> classes;
+          try (Stream<Path> walk = Files.walk(location.resolve("lox"))) {
+            classes = walk.filter(path -> path.toString().endsWith(".class")).sorted().collect(Collectors.toList());
+          }
+          for (Path path : classes) {
+            digest.update(location.relativize(path).toString().getBytes(StandardCharsets.UTF_8));
+            digest.update(Files.readAllBytes(path));
+          }
+        } else {
+          digest.update(Files.readAllBytes(location));
+        }
+      } catch (IOException | URISyntaxException e) {
+        throw new IllegalStateException("Could not find the compiler's classes for --cache", e);
+      }
+      return digest.digest();
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package lox.java;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/* finds every variable used by a function other than the one that declares it, by mangled id */
+class Captures implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+  final BitSet captured = new BitSet();
+  // the function each variable is declared in; 0 is the top level, and so is anything from an earlier line
+  private final Map<Integer, Integer> owners = new HashMap<>();
+  private int functions = 0, currentFunction = 0;
+
+  static BitSet in(List<Stmt> statements) {
+    Captures captures = new Captures();
+    for (Stmt stmt : statements) {
+      stmt.accept(captures);
+    }
+    return captures.captured;
+  }
+
+  private void use(Expr.Symbol symbol) {
+    if (owners.getOrDefault(symbol.id, 0) != currentFunction) captured.set(symbol.id);
+  }
+
+  public Void visitStmt(Stmt.Expression stmt) { return stmt.expression.accept(this); }
+  public Void visitStmt(Stmt.Print stmt) { return stmt.expression.accept(this); }
+  public Void visitStmt(Stmt.LoopControl keyword) { return null; }
+
+  public Void visitStmt(Stmt.Var var) {
+    owners.put(var.identifier.id, currentFunction);
+    return var.equals == null ? null : var.equals.accept(this);
+  }
+
+  public Void visitStmt(Stmt.Block block) {
+    for (Stmt stmt : block.statements) {
+      stmt.accept(this);
+    }
+    return null;
+  }
+
+  public Void visitStmt(Stmt.If stmt) {
+    stmt.condition.accept(this);
+    stmt.then.accept(this);
+    return stmt.otherwise == null ? null : stmt.otherwise.accept(this);
+  }
+
+  public Void visitStmt(Stmt.While stmt) {
+    stmt.condition.accept(this);
+    return stmt.body.accept(this);
+  }
+
+  public Void visitStmt(Stmt.Function func) {
+    int enclosing = currentFunction;
+    currentFunction = ++functions;
+    for (Expr.Symbol argument : func.arguments) {
+      owners.put(argument.id, currentFunction);
+    }
+    func.body.accept(this);
+    currentFunction = enclosing;
+    return null;
+  }
+
+  public Void visitStmt(Stmt.Return stmt) {
+    return stmt.value == null ? null : stmt.value.accept(this);
+  }
+
+  public Void visitExpr(Expr.Literal expr) { return null; }
+  public Void visitExpr(Expr.Grouping expr) { return expr.expression.accept(this); }
+  public Void visitExpr(Expr.Unary expr) { return expr.right.accept(this); }
+
+  public Void visitExpr(Expr.Symbol symbol) {
+    use(symbol);
+    return null;
+  }
+
+  public Void visitExpr(Expr.Binary expr) {
+    expr.left.accept(this);
+    return expr.right.accept(this);
+  }
+
+  public Void visitExpr(Expr.Logical expr) {
+    expr.left.accept(this);
+    return expr.right.accept(this);
+  }
+
+  public Void visitExpr(Expr.Assign expr) {
+    use(expr.lvalue);
+    return expr.rvalue.accept(this);
+  }
+
+  public Void visitExpr(Expr.Call call) {
+    for (Expr argument : call.arguments) {
+      argument.accept(this);
+    }
+    return null;
+  }
+}
@@ -0,0 +1,327 @@
+package lox.java;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Just enough of the class file format for JvmCompiler:
+ * one class with static fields and static methods.
+ *
+ * We write version 49 (Java 5) class files, which are still verified by type inference,
+ * so we don't have to compute stack map frames.
+ * See https://docs.oracle.com/javase/specs/jvms/se11/html/jvms-4.html
+ */
+class ClassWriter {
+  static final int ACC_PUBLIC = 0x1, ACC_PRIVATE = 0x2, ACC_STATIC = 0x8, ACC_SUPER = 0x20;
+  private static final int VERSION = 49;
+  private static final byte UTF8 = 1, INTEGER = 3, DOUBLE = 6, CLASS = 7, STRING = 8,
+    FIELD = 9, METHOD = 10, NAME_AND_TYPE = 12;
+
+  // opcodes; only the ones we use
+  static final int ACONST_NULL = 0x01, ICONST_0 = 0x03, DCONST_0 = 0x0e,
+    BIPUSH = 0x10, SIPUSH = 0x11, LDC = 0x12, LDC_W = 0x13, LDC2_W = 0x14,
+    ILOAD = 0x15, DLOAD = 0x18, ALOAD = 0x19, ISTORE = 0x36, DSTORE = 0x39, ASTORE = 0x3a,
+    POP = 0x57, POP2 = 0x58, DUP = 0x59, DUP2 = 0x5c,
+    IADD = 0x60, DADD = 0x63, ISUB = 0x64, DSUB = 0x67, IMUL = 0x68, DMUL = 0x6b,
+    IDIV = 0x6c, DDIV = 0x6f, IREM = 0x70, DREM = 0x73, INEG = 0x74, DNEG = 0x77,
+    IAND = 0x7e, IOR = 0x80, IXOR = 0x82, I2D = 0x87, D2I = 0x8e,
+    DCMPL = 0x97, DCMPG = 0x98,
+    IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d, IFLE = 0x9e,
+    IF_ICMPEQ = 0x9f, IF_ICMPNE = 0xa0, IF_ICMPLT = 0xa1, IF_ICMPGE = 0xa2,
+    IF_ICMPGT = 0xa3, IF_ICMPLE = 0xa4, GOTO = 0xa7,
+    IRETURN = 0xac, DRETURN = 0xaf, ARETURN = 0xb0, RETURN = 0xb1,
+    GETSTATIC = 0xb2, PUTSTATIC = 0xb3, INVOKEVIRTUAL = 0xb6, INVOKESTATIC = 0xb8,
+    WIDE = 0xc4;
+
+  final String name;
+  private final String source;
+  private final List<byte[]> constants = new ArrayList<>();
+  private final Map<String, Integer> constantIndex = new HashMap<>();
+  private int constantCount = 1;
+  private final ByteArrayOutputStream fields = new ByteArrayOutputStream(),
+    methods = new ByteArrayOutputStream();
+  private int fieldCount = 0, methodCount = 0;
+
+  /* `name` uses '/' as the package separator */
+  ClassWriter(String name, String source) {
+    this.name = name;
+    this.source = source;
+  }
+
+  void field(int access, String name, String descriptor) {
+    DataOutputStream out = new DataOutputStream(fields);
+    write(() -> {
+      out.writeShort(access);
+      out.writeShort(utf8(name));
+      out.writeShort(utf8(descriptor));
+      out.writeShort(0);
+    });
+    fieldCount++;
+  }
+
+  Code method(int access, String name, String descriptor) {
+    return new Code(access, name, descriptor);
+  }
+
+  byte[] toByteArray() {
+    int sourceFile = utf8("SourceFile"), sourceName = utf8(source),
+        thisClass = classRef(name), superClass = classRef("java/lang/Object");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    write(() -> {
+      out.writeInt(0xcafebabe);
+      out.writeShort(0);
+      out.writeShort(VERSION);
+      out.writeShort(constantCount);
+      for (byte[] constant : constants) out.write(constant);
+      out.writeShort(ACC_PUBLIC | ACC_SUPER);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(0);
+      out.writeShort(fieldCount);
+      fields.writeTo(out);
+      out.writeShort(methodCount);
+      methods.writeTo(out);
+      out.writeShort(1);
+      out.writeShort(sourceFile);
+      out.writeInt(2);
+      out.writeShort(sourceName);
+    });
+    return bytes.toByteArray();
+  }
+
+  int utf8(String value) {
+    return constant("U" + value, 1, out -> {
+      out.writeByte(UTF8);
+      out.writeUTF(value);
+    });
+  }
+
+  int integer(int value) {
+    return constant("I" + value, 1, out -> {
+      out.writeByte(INTEGER);
+      out.writeInt(value);
+    });
+  }
+
+  /* doubles take up two entries in the pool */
+  int real(double value) {
+    return constant("D" + Double.doubleToRawLongBits(value), 2, out -> {
+      out.writeByte(DOUBLE);
+      out.writeDouble(value);
+    });
+  }
+
+  int string(String value) {
+    int utf8 = utf8(value);
+    return constant("S" + value, 1, out -> {
+      out.writeByte(STRING);
+      out.writeShort(utf8);
+    });
+  }
+
+  int classRef(String name) {
+    int utf8 = utf8(name);
+    return constant("C" + name, 1, out -> {
+      out.writeByte(CLASS);
+      out.writeShort(utf8);
+    });
+  }
+
+  int fieldRef(String owner, String name, String descriptor) {
+    return memberRef(FIELD, owner, name, descriptor);
+  }
+
+  int methodRef(String owner, String name, String descriptor) {
+    return memberRef(METHOD, owner, name, descriptor);
+  }
+
+  private int memberRef(byte tag, String owner, String name, String descriptor) {
+    int ownerIndex = classRef(owner), nameIndex = utf8(name), descriptorIndex = utf8(descriptor),
+        nameAndType = constant("N" + name + ' ' + descriptor, 1, out -> {
+          out.writeByte(NAME_AND_TYPE);
+          out.writeShort(nameIndex);
+          out.writeShort(descriptorIndex);
+        });
+    return constant("" + tag + owner + '.' + name + ' ' + descriptor, 1, out -> {
+      out.writeByte(tag);
+      out.writeShort(ownerIndex);
+      out.writeShort(nameAndType);
+    });
+  }
+
+  private int constant(String key, int size, Writer writer) {
+    Integer index = constantIndex.get(key);
+    if (index != null) return index;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    write(() -> writer.write(out));
+    constants.add(bytes.toByteArray());
+    constantIndex.put(key, constantCount);
+    constantCount += size;
+    return constantCount - size;
+  }
+
+  // everything is written to memory, so an IOException is a bug
+  private static void write(Action action) {
+    try {
+      action.run();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private interface Writer {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  private interface Action {
+    void run() throws IOException;
+  }
+
+  /* a jump target; may be placed after jumps to it are emitted */
+  static class Label {
+    private int position = -1;
+    private final List<Integer> jumps = new ArrayList<>();
+  }
+
+  /*
+   * The body of one method.
+   * Every emit takes the effect on the operand stack, so we can compute max_stack as we go.
+   */
+  class Code {
+    private final int access;
+    private final String name, descriptor;
+    private byte[] code = new byte[64];
+    private int size = 0, stack = 0, maxStack = 0, maxLocals = 0;
+    // pairs of (start pc, line)
+    private int[] lines = new int[16];
+    private int lineCount = 0;
+
+    private Code(int access, String name, String descriptor) {
+      this.access = access;
+      this.name = name;
+      this.descriptor = descriptor;
+    }
+
+    /* make sure locals up to `local` (exclusive) are counted */
+    void locals(int local) {
+      maxLocals = Math.max(maxLocals, local);
+    }
+
+    void line(int line) {
+      if (line < 1 || (lineCount > 0 && lines[2 * lineCount - 1] == line)) return;
+      if (2 * lineCount == lines.length) lines = Arrays.copyOf(lines, lines.length * 2);
+      lines[2 * lineCount] = size;
+      lines[2 * lineCount + 1] = line;
+      lineCount++;
+    }
+
+    void emit(int opcode, int stackEffect) {
+      u1(opcode);
+      adjust(stackEffect);
+    }
+
+    void emitByte(int opcode, int operand, int stackEffect) {
+      u1(opcode);
+      u1(operand);
+      adjust(stackEffect);
+    }
+
+    void emitShort(int opcode, int operand, int stackEffect) {
+      u1(opcode);
+      u2(operand);
+      adjust(stackEffect);
+    }
+
+    /* a load or store; locals past 255 need a wide instruction */
+    void emitLocal(int opcode, int local, int stackEffect) {
+      if (local > 255) {
+        u1(WIDE);
+        emitShort(opcode, local, stackEffect);
+      } else {
+        emitByte(opcode, local, stackEffect);
+      }
+    }
+
+    void emitJump(int opcode, Label target, int stackEffect) {
+      int start = size;
+      u1(opcode);
+      if (target.position != -1) {
+        u2(target.position - start);
+      } else {
+        target.jumps.add(start);
+        u2(0);
+      }
+      adjust(stackEffect);
+    }
+
+    void place(Label label) {
+      label.position = size;
+      for (int jump : label.jumps) {
+        int offset = size - jump;
+        code[jump + 1] = (byte)(offset >> 8);
+        code[jump + 2] = (byte)offset;
+      }
+    }
+
+    /* the stack depth at a label jumped to from elsewhere, e.g. after an unconditional goto */
+    void stack(int depth) {
+      stack = depth;
+    }
+
+    int stack() {
+      return stack;
+    }
+
+    /* false if the method is too big for 16-bit jump offsets */
+    boolean end() {
+      if (size > Short.MAX_VALUE) return false;
+      int codeName = utf8("Code"), lineNumbers = utf8("LineNumberTable"),
+          nameIndex = utf8(name), descriptorIndex = utf8(descriptor);
+      DataOutputStream out = new DataOutputStream(methods);
+      write(() -> {
+        out.writeShort(access);
+        out.writeShort(nameIndex);
+        out.writeShort(descriptorIndex);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + size + 8 + 4 * lineCount);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(size);
+        out.write(code, 0, size);
+        out.writeShort(0);
+        out.writeShort(1);
+        out.writeShort(lineNumbers);
+        out.writeInt(2 + 4 * lineCount);
+        out.writeShort(lineCount);
+        for (int i = 0; i < 2 * lineCount; i++) out.writeShort(lines[i]);
+      });
+      methodCount++;
+      return true;
+    }
+
+    private void adjust(int stackEffect) {
+      stack += stackEffect;
+      maxStack = Math.max(maxStack, stack);
+    }
+
+    private void u1(int value) {
+      if (size == code.length) code = Arrays.copyOf(code, size * 2);
+      code[size++] = (byte)value;
+    }
+
+    private void u2(int value) {
+      u1(value >> 8);
+      u1(value);
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package lox.java;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/*
+ * What jlox runs: if a daemon (jlox --server) is up and can handle the arguments,
+ * this sends them to it and prints what it sends back; otherwise it runs Lox right here.
+ * It only loads a handful of classes, so it starts quickly.
+ */
+class Client {
+  public static void main(String[] args) throws IOException {
+    Integer status = forward(args);
+    if (status == null) {
+      Lox.main(args);
+    } else if (status != 0) {
+      System.exit(status);
+    }
+  }
+
+  /* the exit status from the daemon, or null if there's no daemon to ask */
+  private static Integer forward(String[] args) {
+    try {
+      if (!Server.handles(Options.parse(args))) return null;
+    } catch (IllegalArgumentException e) {
+      // Lox prints the usage
+      return null;
+    }
+    String[] address;
+    try {
+      address = new String(Files.readAllBytes(Server.address()), StandardCharsets.UTF_8).split(" ");
+    } catch (IOException e) {
+      return null;
+    }
+    if (address.length != 2) return null;
+
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(address[0]))) {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      out.writeUTF(address[1]);
+      out.writeUTF(Paths.get("").toAbsolutePath().toString());
+      out.writeInt(args.length);
+      for (String arg : args) {
+        out.writeUTF(arg);
+      }
+      out.flush();
+
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      int status = in.readInt();
+      byte[] stdout = Server.read(in), stderr = Server.read(in);
+      System.out.write(stdout);
+      System.out.flush();
+      System.err.write(stderr);
+      System.err.flush();
+      return status;
+    } catch (IOException | NumberFormatException e) {
+      // a stale address, or the daemon went away; the compilation hasn't printed anything yet
+      return null;
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package lox.java;
+
+/*
+ * Everything that belongs to one compilation: the source, its errors and identifiers,
+ * and the options and statistics it runs with. Every Pass gets the context of its compilation
+ * and nothing about a compilation is global, so any number of them can run at once,
+ * one thread each.
+ */
+final class CompilationContext {
+  final Source source;
+  final Options options;
+  final Diagnostics diagnostics;
+  final Symbols symbols;
+  final Statistics statistics;
+  // what the REPL kept from earlier lines, or null if the compilation starts from nothing
+  final Session session;
+  // the other compilations this one runs alongside, or null
+  final Batch batch;
+  // the exit status for jlox to pass on, if not 0: that of the program lli ran, or 130 after Ctrl-C.
+  // Passes never call System.exit themselves: a Batch or the Server runs many compilations in one JVM.
+  int status = 0;
+
+  CompilationContext(Source source, Options options) {
+    this(source, options, null, null);
+  }
+
+  CompilationContext(Source source, Options options, Session session) {
+    this(source, options, session, null);
+  }
+
+  CompilationContext(Source source, Options options, Session session, Batch batch) {
+    this.source = source;
+    this.options = options;
+    this.session = session;
+    this.batch = batch;
+    diagnostics = new Diagnostics(source);
+    symbols = session == null ? new Symbols() : session.symbols;
+    statistics = options.collectStatistics() ? new Statistics(source) : Statistics.DISABLED;
+  }
+
+  /* a tool was interrupted, so stop as a shell would after Ctrl-C */
+  void interrupted(String tool) {
+    status = 130;
+    error(-1, -1, "Interrupted while running " + tool);
+    Thread.currentThread().interrupt();
+  }
+
+  boolean hadError() {
+    return diagnostics.count() != 0;
+  }
+
+  void error(Token token, String message) {
+    error(token.line, token.column, message);
+  }
+
+  void error(int line, int column, String message) {
+    // note: line is 1-indexed, column is 0-indexed
+    diagnostics.error(line, column, message);
+  }
+}
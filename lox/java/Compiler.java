@@ -1,46 +1,34 @@
 package lox.java;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import static java.util.Map.entry;
-import static lox.java.Lox.error;
 import static lox.java.Token.Type.*;
 
-class Compiler extends Pass<List<Stmt>, List<String>>
-        implements Stmt.Visitor<String>, Expr.Visitor<Compiler.ExprNode> {
-  private final List<List<String>> assembly = new ArrayList<>();
-  private final Map<String, ExprNode> variables = new HashMap<>();
+class Compiler extends Pass<List<Stmt>, IR>
+        implements Stmt.Visitor<Void>, Expr.Visitor<IR.Value> {
+  private IR module;
+  // with --pipe, where the module goes
+  private final ToolPipeline tools;
+  private final Symbols symbols = context.symbols;
+  // indexed by mangled name; the alloca of each variable, or with --ssa its current value.
+  // A top-level variable that functions use is a global instead, in both modes.
+  private final IR.Value[] variables = new IR.Value[symbols.size()];
+  private final BitSet captured = Captures.in(input);
+  private final boolean ssa = context.options.ssa;
   private LoopNode currentLoop = null;
   private long currentVariables = 0, currentIntermediates = 0, currentLabel = 0;
-  private int context = 1;
-  private String currentBlock = "start";
-
-  private static final String PUTS_TRUE = "@.true_str",
-    PUTS_FALSE = "@.false_str",
-    PUTS_NULL = "@.null_str",
-    PRINTF_INT = "@.int_format",
-    PRINTF_DOUBLE = "@.double_format",
-    CONST_TRUE = "@.true",
-    CONST_FALSE = "@.false";
-
-  private static final String LLVM_CONST = "private unnamed_addr constant ",
-    PUTS_TRUE_DECLARATION = String.format("%s = %s %s",
-        PUTS_TRUE, LLVM_CONST, "[5 x i8] c\"true\\00\""),
-    PUTS_FALSE_DECLARATION = String.format("%s = %s %s",
-        PUTS_FALSE, LLVM_CONST, "[6 x i8] c\"false\\00\""),
-    PUTS_NULL_DECLARATION = String.format("%s = %s %s",
-        PUTS_NULL, LLVM_CONST, "[5 x i8] c\"null\\00\""),
-    PRINTF_INT_DECLARATION = String.format("%s = %s %s",
-        PRINTF_INT, LLVM_CONST, "[4 x i8] c\"%d\\0A\\00\""),
-    PRINTF_DOUBLE_DECLARATION = String.format("%s = %s %s",
-      PRINTF_DOUBLE, LLVM_CONST, "[4 x i8] c\"%f\\0A\\00\""),
-    CONST_TRUE_DECLARATION = String.format("%s = %s i1 1",
-        CONST_TRUE, LLVM_CONST),
-    CONST_FALSE_DECLARATION = String.format("%s = %s i1 0",
-        CONST_FALSE, LLVM_CONST);
+  private IR.Function main, function;
+  private IR.Block block;
+
+  private static final String LLVM_CONST = "private unnamed_addr constant";
+
+  private IR.Global putsTrue, putsFalse, putsNull, printfInt, printfDouble, constTrue, constFalse;
 
   private static final Map<LoxType, String> llvmTypes = Map.ofEntries(
     entry(LoxType.BOOL, "i1"),
@@ -50,278 +38,299 @@ class Compiler extends Pass<List<Stmt>, List<String>>
     entry(LoxType.VOID, "void")
   );
 
+  private static final Map<Token.Type, String> intOperators = Map.ofEntries(
+    entry(PLUS, "add"),
+    entry(MINUS, "sub"),
+    entry(STAR, "mul"),
+    entry(SLASH, "sdiv"),
+    entry(PERCENT, "srem"),
+    entry(AMPERSAND, "and"),
+    entry(PIPE, "or"),
+    entry(CARET, "xor"),
+    entry(EQUAL_EQUAL, "icmp eq"),
+    entry(BANG_EQUAL, "icmp ne"),
+    entry(LESS, "icmp slt"),
+    entry(LESS_EQUAL, "icmp sle"),
+    entry(GREATER, "icmp sgt"),
+    entry(GREATER_EQUAL, "icmp sge")
+  );
+
+  // booleans are 1-bit integers; the operand types are in the instruction
   private static final Map<LoxType, Map<Token.Type, String>> operators = Map.of(
     LoxType.DOUBLE, Map.ofEntries(
-      entry(PLUS, "fadd double"),
-      entry(MINUS, "fsub double"),
-      entry(STAR, "fmul double"),
-      entry(SLASH, "fdiv double"),
-      entry(PERCENT, "frem double"),
-      entry(EQUAL, "store double"),
-      entry(EQUAL_EQUAL, "fcmp oeq double"),
-      entry(BANG_EQUAL, "fcmp one double"),
-      entry(LESS, "fcmp olt double"),
-      entry(LESS_EQUAL, "fcmp ole double"),
-      entry(GREATER, "fcmp ogt double"),
-      entry(GREATER_EQUAL, "fcmp oge double")
-    ),
-    LoxType.INT, Map.ofEntries(
-      entry(PLUS, "add i32"),
-      entry(MINUS, "sub i32"),
-      entry(STAR, "mul i32"),
-      entry(SLASH, "sdiv i32"),
-      entry(PERCENT, "srem i32"),
-      entry(AMPERSAND, "and i32"),
-      entry(PIPE, "or i32"),
-      entry(CARET, "xor i32"),
-      entry(EQUAL, "store i32"),
-      entry(EQUAL_EQUAL, "icmp eq i32"),
-      entry(BANG_EQUAL, "icmp ne i32"),
-      entry(LESS, "icmp slt i32"),
-      entry(LESS_EQUAL, "icmp sle i32"),
-      entry(GREATER, "icmp sgt i32"),
-      entry(GREATER_EQUAL, "icmp sge i32")
+      entry(PLUS, "fadd"),
+      entry(MINUS, "fsub"),
+      entry(STAR, "fmul"),
+      entry(SLASH, "fdiv"),
+      entry(PERCENT, "frem"),
+      entry(EQUAL_EQUAL, "fcmp oeq"),
+      entry(BANG_EQUAL, "fcmp one"),
+      entry(LESS, "fcmp olt"),
+      entry(LESS_EQUAL, "fcmp ole"),
+      entry(GREATER, "fcmp ogt"),
+      entry(GREATER_EQUAL, "fcmp oge")
     ),
-    // TODO: this is a near-duplicate of the map for INT
-    LoxType.BOOL, Map.ofEntries(
-      entry(PLUS, "add i1"),
-      entry(MINUS, "sub i1"),
-      entry(STAR, "mul i1"),
-      entry(SLASH, "sdiv i1"),
-      entry(PERCENT, "srem i1"),
-      entry(AMPERSAND, "and i1"),
-      entry(PIPE, "or i1"),
-      entry(CARET, "xor i1"),
-      entry(EQUAL, "store i1"),
-      entry(EQUAL_EQUAL, "icmp eq i1"),
-      entry(BANG_EQUAL, "icmp ne i1"),
-      entry(LESS, "icmp slt i1"),
-      entry(LESS_EQUAL, "icmp sle i1"),
-      entry(GREATER, "icmp sgt i1"),
-      entry(GREATER_EQUAL, "icmp sge i1")
-    )
+    LoxType.INT, intOperators,
+    LoxType.BOOL, intOperators
   );
 
-  Compiler(List<Stmt> program) {
-    super(program);
+  Compiler(CompilationContext context, List<Stmt> program) {
+    this(context, program, null);
   }
 
-  public List<String> runPass() {
-    assembly.clear();
-    add("declare i32 @puts(i8* nocapture) nounwind", 0);
-    add("declare i32 @printf(i8* nocapture, ...) nounwind", 0);
-    add(PUTS_TRUE_DECLARATION, 0);
-    add(PUTS_FALSE_DECLARATION, 0);
-    add(PUTS_NULL_DECLARATION, 0);
-    add(PRINTF_INT_DECLARATION, 0);
-    add(PRINTF_DOUBLE_DECLARATION, 0);
-    add(CONST_TRUE_DECLARATION, 0);
-    add(CONST_FALSE_DECLARATION, 0);
+  Compiler(CompilationContext context, List<Stmt> program, ToolPipeline tools) {
+    super(context, program);
+    this.tools = tools;
+  }
 
-    add("\ndefine i32 @main() {");
-    add(currentBlock + ':');
+  public IR runPass() {
+    if (tools != null) {
+      try {
+        tools.start();
+      } catch (IOException e) {
+        error(-1, -1, "Failed to start " + tools + ": " + e.getMessage());
+        return null;
+      }
+    }
+    try {
+      // bitcode has to be written all at once
+      if (context.options.bitcode) module = IR.inMemory(tools);
+      else module = tools == null ? IR.open() : IR.pipe(tools);
+    } catch (IOException e) {
+      error(-1, -1, "Failed to write assembly");
+      return null;
+    }
+    module.declarations.add("declare i32 @puts(i8* nocapture) nounwind");
+    module.declarations.add("declare i32 @printf(i8* nocapture, ...) nounwind");
+    putsTrue = module.string("@.true_str", "true");
+    putsFalse = module.string("@.false_str", "false");
+    putsNull = module.string("@.null_str", "null");
+    printfInt = module.string("@.int_format", "%d\n");
+    printfDouble = module.string("@.double_format", "%f\n");
+    constTrue = module.global("@.true", LLVM_CONST, "i1", "1");
+    constFalse = module.global("@.false", LLVM_CONST, "i1", "0");
+
+    function = main = module.main();
+    place(new IR.Block("start"));
 
     for (Stmt stmt : input) {
-      add(stmt.accept(this));
+      stmt.accept(this);
+      // every loop and branch is closed, so only the current block can still change
+      module.flush(function);
     }
 
-    add("ret i32 0");
-    add("}");
+    emit(new IR.Return(new IR.Value("i32", "0")));
+    module.end(function);
 
-    return flatten(assembly);
+    context.statistics.count("irInstructions", module.size());
+    if (context.hadError()) {
+      try {
+        module.discard();
+      } catch (IOException e) {
+        // it's only a temporary file
+      }
+    }
+    return module;
   }
 
-  /*
-     private boolean lvalue(Expr x) {
-     if (x instanceof Expr.Symbol) return true;
-     return (x instanceof Access) && lvalue(x.variable);
-     }
-     */
+  public Void visitStmt(Stmt.While loop) {
+    LoopNode oldLoop = currentLoop, node = new LoopNode(new IR.Block("LoopStartLabel" + currentLabel++),
+        new IR.Block("LoopEndLabel" + currentLabel++));
+    IR.Block afterCondition = new IR.Block("LoopAfterConditionLabel" + currentLabel++);
 
-  public String visitStmt(Stmt.While loop) {
-    LoopNode oldLoop = currentLoop;
-    currentLoop = new LoopNode("LoopStartLabel" + currentLabel++,
-        "LoopEndLabel" + currentLabel++);
-    String afterLabel = "LoopAfterConditionLabel" + currentLabel++;
+    /* before either condition or body; LLVM doesn't fall through into blocks */
+    branch(node.start, node.continues);
+    place(node.start);
+    Map<Integer, IR.Phi> phis = ssa ? loopPhis(loop) : Map.of();
+    currentLoop = node;
 
-    /* before either condition or body */
-    add(currentLoop.startLabel + ':');
-
-    ExprNode cond = loop.condition.accept(this);
+    IR.Value cond = loop.condition.accept(this);
     /* after we calculate condition, before body */
-    add("br i1 " + cond.register + ", label %" + afterLabel
-        + ", label %" + currentLoop.endLabel);
+    node.breaks.add(edge());
+    emit(new IR.CondBranch(cond, afterCondition, node.end));
     /* LLVM requires an explicit ELSE branch, we just go immediately after */
-    add(afterLabel + ':');
+    place(afterCondition);
 
     /* main loop */
-    add(loop.body.accept(this));
+    loop.body.accept(this);
     /* unconditionally go back to start, we calculate condition there */
-    add("br label %" + currentLoop.startLabel);
+    branch(node.start, node.continues);
+    phis.forEach((id, phi) -> incoming(phi, id, node.continues));
 
     currentLoop = oldLoop;
-    return currentLoop.endLabel + ':';
+    join(node.end, node.breaks);
+    return null;
   }
 
-  public String visitStmt(Stmt.If branch) {
-    ExprNode branchResult = branch.condition.accept(this);
-    String thenLabel = "ThenLabel" + currentLabel++,
-           elseLabel = "ElseLabel" + currentLabel++,
-           afterLabel = "AfterLabel" + currentLabel++;
+  public Void visitStmt(Stmt.If branch) {
+    IR.Value branchResult = branch.condition.accept(this);
+    IR.Block then = new IR.Block("ThenLabel" + currentLabel++),
+             otherwise = new IR.Block("ElseLabel" + currentLabel++),
+             after = new IR.Block("AfterLabel" + currentLabel++);
+    Edge condition = edge();
+    List<Edge> edges = new ArrayList<>();
+    if (branch.otherwise == null) edges.add(condition);
 
-    add("br i1 " + branchResult.register + ", label %" + thenLabel
-        + ", label %" + (branch.otherwise == null ? afterLabel : elseLabel));
+    emit(new IR.CondBranch(branchResult, then, branch.otherwise == null ? after : otherwise));
 
-    add(thenLabel + ':');
-    add(branch.then.accept(this));
-    add("br label %" + afterLabel);
+    place(then);
+    branch.then.accept(this);
+    branch(after, edges);
 
     if (branch.otherwise != null) {
-      add(elseLabel + ':');
-      add(branch.otherwise.accept(this));
-      add("br label %" + afterLabel);
+      restore(condition);
+      place(otherwise);
+      branch.otherwise.accept(this);
+      branch(after, edges);
     }
 
-    return afterLabel + ':';
+    join(after, edges);
+    return null;
   }
 
   /* TODO: print should be a function primitive, not a statement */
-  public String visitStmt(Stmt.Print print) {
-    String call = String.format("%%unused_register%d = call i32 ",
-        currentIntermediates++);
+  public Void visitStmt(Stmt.Print print) {
     // need to evaluate expression even if null (function calls could have side effects)
-    final ExprNode expr = print.expression.accept(this), printNode = new ExprNode(LoxType.STRING);
+    final IR.Value expr = print.expression.accept(this);
 
     switch(print.expression.type) {
       case STRING:
-        call += "@puts (i8* " + expr.register + ')';
+        puts(expr);
         break;
       case DOUBLE:
-        add(assign(printNode, loadStringPointer(PRINTF_DOUBLE, 4)));
-        call += "(i8*, ...) @printf (" + printNode +  ", " + expr + ')';
+        printf(printfDouble, expr);
         break;
       case INT:
-        add(assign(printNode, loadStringPointer(PRINTF_INT, 4)));
-        call += "(i8*, ...) @printf (" + printNode + ", " + expr + ')';
+        printf(printfInt, expr);
         break;
       case BOOL:
-        ExprNode printTrue = new ExprNode(LoxType.STRING),
-                 printFalse = new ExprNode(LoxType.STRING);
-        add(assign(printTrue, loadStringPointer(PUTS_TRUE, 5)));
-        add(assign(printFalse, loadStringPointer(PUTS_FALSE, 6)));
-
-        ExprNode isTrue = new ExprNode(getTmp(), llvmTypes.get(LoxType.BOOL));
-        add(assign(isTrue, "icmp eq " + expr + ", 1"));
-        add(assign(printNode, "select " + isTrue + ", "
-                    + printTrue + ", " + printFalse));
-
-        call += "@puts (" + printNode + ')';
+        IR.Value printTrue = pointer(putsTrue), printFalse = pointer(putsFalse);
+        puts(emit(new IR.Select(tmp(LoxType.STRING), expr, printTrue, printFalse)));
         break;
       default:
         error(print.expression.token.line, print.expression.token.column, "Unknown type to print");
     }
-    return call;
+    return null;
   }
 
-  public String visitStmt(Stmt.Expression expr) {
+  public Void visitStmt(Stmt.Expression expr) {
     // we need to visit expr in case of an assignment
     expr.expression.accept(this);
-    return "";
+    return null;
   }
 
-  public String visitStmt(Stmt.Block block) {
+  public Void visitStmt(Stmt.Block block) {
     for (Stmt stmt : block.statements) {
-      add(stmt.accept(this));
+      stmt.accept(this);
+    }
+    // out of scope; this keeps them out of any phis after the block
+    if (ssa) {
+      for (Stmt stmt : block.statements) {
+        if (stmt instanceof Stmt.Var) variables[((Stmt.Var)stmt).identifier.id] = null;
+      }
     }
-    return "";
+    return null;
   }
 
-  public String visitStmt(Stmt.Var var) {
+  public Void visitStmt(Stmt.Var var) {
     // scoping/mangling is handled by Annotate pass
-    ExprNode register = new ExprNode("%" + var.identifier.token.lexeme,
-        llvmTypes.get(var.identifier.type) + '*');
-    variables.put(var.identifier.token.lexeme, register);
-    // store variable on the stack
-    add(assign(register, "alloca " +
-          register.llvmType.substring(0, register.llvmType.length() - 1)));
+    if (function == main && captured.get(var.identifier.id)) {
+      String type = llvmTypes.get(var.identifier.type);
+      IR.Global global = module.global("@" + name(var.identifier), "private global", type, "zeroinitializer");
+      variables[var.identifier.id] = global;
+      // a loop declares it again each time around
+      if (var.equals == null) emit(new IR.Store(new IR.Value(type, "zeroinitializer"), global));
+    } else if (ssa) {
+      variables[var.identifier.id] = new IR.Value(llvmTypes.get(var.identifier.type), "zeroinitializer");
+    } else {
+      // store variable on the stack
+      variables[var.identifier.id] = emit(new IR.Alloca(
+            new IR.Value(llvmTypes.get(var.identifier.type) + '*', "%" + name(var.identifier))));
+    }
     if (var.equals != null) var.equals.accept(this);
-    return "";
+    return null;
   }
 
-  public String visitStmt(Stmt.Function func) {
-    StringBuilder asm = new StringBuilder(), stores = new StringBuilder();
-    asm.append("define ").append(llvmTypes.get(func.identifier.type))
-       .append(" @").append(func.identifier.token.lexeme).append('(');
-
-    for (Expr.Symbol id : func.arguments) {
-      ExprNode arg = new ExprNode(id.type);
-      asm.append(arg).append(',');
-
-      String llvmType = llvmTypes.get(id.type);
-      ExprNode ptr = new ExprNode("%" + id.token.lexeme + "_ptr",  llvmType + '*');
-      stores.append(assign(ptr, "alloca " + llvmType + '\n'))
-            .append("store ").append(arg).append(", ").append(ptr);
-      variables.put(id.token.lexeme, ptr);
+  public Void visitStmt(Stmt.Function func) {
+    List<IR.Value> parameters = new ArrayList<>();
+    for (Expr.Symbol argument : func.arguments) {
+      parameters.add(tmp(argument.type));
     }
-    // end of arguments, replace "," with ")"
-    if (func.arguments.size() > 0)
-      asm.setCharAt(asm.length() - 1, ')');
-    else asm.append(')');
 
     // functions need to be top level, but they can come at any point in the file
-    context++;
+    IR.Function enclosing = function;
+    IR.Block enclosingBlock = block;
+    LoopNode enclosingLoop = currentLoop;
+    IR.Value[] enclosingVariables = variables.clone();
+    currentLoop = null;
+    // the registers and allocas of the enclosing function aren't visible here, only the globals
+    for (int id = 0; id < variables.length; id++) {
+      if (!(variables[id] instanceof IR.Global)) variables[id] = null;
+    }
+    function = module.function("@" + name(func.identifier), llvmTypes.get(func.identifier.type), parameters);
+    place(new IR.Block("funcStart" + currentLabel++));
+
+    for (int i = 0; i < parameters.size(); i++) {
+      Expr.Symbol argument = func.arguments.get(i);
+      IR.Value arg = parameters.get(i);
+      if (ssa) {
+        variables[argument.id] = arg;
+      } else {
+        IR.Value ptr = emit(new IR.Alloca(new IR.Value(arg.type + '*', "%" + name(argument) + "_ptr")));
+        emit(new IR.Store(arg, ptr));
+        variables[argument.id] = ptr;
+      }
+    }
 
-    add(asm.append(" {").toString());
-    add((currentBlock = "funcStart" + currentLabel++) + ':');
-    add(stores.toString());
-    add(func.body.accept(this));
-    add("}");
+    func.body.accept(this);
+    // non-void functions don't have to return on every path
+    if (!block.terminated()) emit(new IR.Unreachable());
+    module.end(function);
 
-    context--;
-    return "";
+    function = enclosing;
+    block = enclosingBlock;
+    currentLoop = enclosingLoop;
+    System.arraycopy(enclosingVariables, 0, variables, 0, variables.length);
+    return null;
   }
 
   @Override
-  public String visitStmt(Stmt.Return stmt) {
-    if (stmt.value == null) {
-      return "ret void";
-    }
-    return "ret " + stmt.value.accept(this);
+  public Void visitStmt(Stmt.Return stmt) {
+    emit(new IR.Return(stmt.value == null ? null : stmt.value.accept(this)));
+    return null;
   }
 
-  public ExprNode visitExpr(Expr.Symbol symbol) {
-    ExprNode var = variables.get(symbol.token.lexeme),
-             value = new ExprNode(var.register + "_tmp" + currentVariables++,
-                var.llvmType.substring(0, var.llvmType.length() - 1));
-    add(assign(value, "load " + value.llvmType + ", " + var));
-    return value;
+  public IR.Value visitExpr(Expr.Symbol symbol) {
+    IR.Value var = variable(symbol);
+    if (inRegister(var)) return var;
+    return emit(new IR.Load(new IR.Value(var.type.substring(0, var.type.length() - 1),
+            "%" + var.name.substring(1) + "_tmp" + currentVariables++), var));
   }
 
-  public ExprNode visitExpr(Expr.Grouping expr) {
+  public IR.Value visitExpr(Expr.Grouping expr) {
     return expr.expression.accept(this);
   }
 
-  public ExprNode visitExpr(Expr.Logical expr) {
+  public IR.Value visitExpr(Expr.Logical expr) {
     /*
      *  if (expr.type == OR ? left : !left) return left
      *  else return right;
      */
-    String rightLabel = "logicRightLabel" + currentLabel++,
-           endLabel = "logicEndLabel" + currentLabel++;
+    IR.Block rightBlock = new IR.Block("logicRightLabel" + currentLabel++),
+             end = new IR.Block("logicEndLabel" + currentLabel++);
 
-    ExprNode result = new ExprNode(expr.type),
+    IR.Value result = tmp(expr.type),
              left = expr.left.accept(this),
              cond;
 
     if (expr.token.type == Token.Type.OR) {
       cond = left;
     } else if (expr.token.type == Token.Type.AND) {
-      cond = new ExprNode(expr.type);
       // cond = !left
       // note that we can't make the condition part of the br
       // because br only allows registers or constant expressions
       // http://llvm.org/docs/LangRef.html#constantexprs
-      add(assign(cond, "icmp eq i1 0, " + left.register));
+      cond = emit(not(left));
     } else {
       // this is going to bite us when we add ternary operator
       throw new IllegalArgumentException("INTERNAL error: "
@@ -329,205 +338,269 @@ class Compiler extends Pass<List<Stmt>, List<String>>
     }
 
     /* if (cond) goto end; else { eval right; goto end; } */
-    add("br " + cond + ", label %" + endLabel + ", label %" + rightLabel);
-    add(rightLabel + ':');
-    String originalLabel = currentBlock;
-    currentBlock = rightLabel;
-
-    ExprNode right = expr.right.accept(this);
-    add("br label %" + endLabel);
-
-    add(endLabel + ':');
-    add(assign(result, String.format("phi i1 [ %s, %%%s ], [ %s, %%%s ]",
-            left.register, originalLabel, right.register, currentBlock)));
-    currentBlock = endLabel;
-
-    return result;
+    List<Edge> edges = new ArrayList<>(List.of(edge()));
+    emit(new IR.CondBranch(cond, end, rightBlock));
+    place(rightBlock);
+
+    IR.Value right = expr.right.accept(this);
+    branch(end, edges);
+
+    join(end, edges);
+    IR.Phi phi = new IR.Phi(result);
+    phi.add(left, edges.get(0).block);
+    phi.add(right, edges.get(1).block);
+    return emit(phi);
   }
 
-  public ExprNode visitExpr(Expr.Unary unary) {
-    ExprNode original = unary.right.accept(this), result = new ExprNode(unary.right.type);
+  public IR.Value visitExpr(Expr.Unary unary) {
+    IR.Value original = unary.right.accept(this);
     if (unary.token.type == Token.Type.MINUS) {
-      add(assign(result, operators.get(unary.type).get(Token.Type.MINUS)
-        + " 0" + (unary.right.type == LoxType.DOUBLE ? ".0, " : ", ") + original.register));
-    } else add(assign(result, not(original)));
-    return result;
+      IR.Value zero = new IR.Value(original.type, unary.right.type == LoxType.DOUBLE ? "0.0" : "0");
+      return emit(new IR.Binary(tmp(unary.right.type), operators.get(unary.type).get(Token.Type.MINUS),
+            zero, original));
+    }
+    return emit(not(original));
   }
 
-  private String not(ExprNode node) {
-    return "icmp eq i1 0, " + node.register;
+  private IR.Instruction not(IR.Value value) {
+    return new IR.Binary(tmp(LoxType.BOOL), "icmp eq", new IR.Value("i1", "0"), value);
   }
 
-  public ExprNode visitExpr(Expr.Call call) {
-    ExprNode result = new ExprNode(call.type);
-    StringBuilder builder = new StringBuilder();
-
-    builder.append(result.register).append(" = call ").append(result.llvmType)
-           .append(" @").append(call.callee.token.lexeme).append('(');
-
+  public IR.Value visitExpr(Expr.Call call) {
+    IR.Value result = tmp(call.type);
+    List<IR.Value> arguments = new ArrayList<>(call.arguments.size());
     for (Expr expr : call.arguments) {
-      ExprNode arg = expr.accept(this);
-      builder.append(arg.llvmType).append(' ').append(arg.register).append(',');
+      arguments.add(expr.accept(this));
     }
-
-    if (call.arguments.size() > 0) {
-      builder.setCharAt(builder.length() - 1, ')');
-      add(assign(result, builder.toString()));
-    } else {
-      builder.append(')');
-      add(builder.toString());
-    }
-
+    // void calls can't be named
+    emit(new IR.Call(call.type == LoxType.VOID ? null : result, result.type, null,
+          "@" + name(call.callee), arguments));
     return result;
   }
 
-  public ExprNode visitExpr(Expr.Assign assign) {
-    ExprNode value = assign.rvalue.accept(this),
-             lvalue = variables.get(assign.lvalue.token.lexeme);
-    // copy: assign.lvalue = 0 + value
-    add("store " + value + ", " + lvalue);
+  public IR.Value visitExpr(Expr.Assign assign) {
+    IR.Value value = convert(assign.rvalue.accept(this), assign.rvalue.type, assign.lvalue.type);
+    IR.Value var = variable(assign.lvalue);
+    if (inRegister(var)) {
+      variables[assign.lvalue.id] = value;
+    } else {
+      emit(new IR.Store(value, var));
+    }
     return value;
   }
 
-  public String visitStmt(Stmt.LoopControl keyword) {
+  public Void visitStmt(Stmt.LoopControl keyword) {
     if (currentLoop == null) {
       error(keyword.token.line, keyword.token.column,
           "Illegal keyword '" + keyword.token.lexeme + "' when not inside a loop");
-      return "";
+    } else if (keyword.token.type == BREAK) {
+      branch(currentLoop.end, currentLoop.breaks);
     } else {
-      return "br label %" + (keyword.token.type == BREAK ?
-          currentLoop.endLabel : currentLoop.startLabel);
+      branch(currentLoop.start, currentLoop.continues);
     }
+    return null;
   }
 
-  public ExprNode visitExpr(Expr.Binary expr) {
+  public IR.Value visitExpr(Expr.Binary expr) {
     // TODO
-    assert expr.left.type == expr.right.type && expr.right.type == expr.type;
+    assert expr.left.type == expr.right.type;
 
-    ExprNode left = expr.left.accept(this), right = expr.right.accept(this);
+    IR.Value left = expr.left.accept(this), right = expr.right.accept(this);
 
+    // comparisons are typed by their (promoted) operands, not their result
+    LoxType type = expr.type != LoxType.BOOL ? expr.type
+      : expr.left.type.compareTo(expr.right.type) >= 0 ? expr.left.type : expr.right.type;
     // llvm assembly instruction
-    String operation = operators.get(expr.type).get(expr.token.type);
+    Map<Token.Type, String> instructions = operators.get(type);
+    String operation = instructions == null ? null : instructions.get(expr.token.type);
+    IR.Value result = tmp(expr.type);
     if (operation == null) {
       error(expr.token.line, expr.token.column,
-          "Illegal operator '" + expr.token.lexeme + "' for type " + expr.type);
+          "Illegal operator '" + expr.token.lexeme + "' for type " + type);
+      return result;
     }
-    ExprNode result = new ExprNode(expr.type);
 
-    add(assign(result, operation + ' ' + left.register + ", " + right.register));
-    return result;
+    return emit(new IR.Binary(result, operation, left, right));
   }
 
-  public ExprNode visitExpr(Expr.Literal expr) {
+  public IR.Value visitExpr(Expr.Literal expr) {
     if (expr.type == null) {
       error(expr.token.line, expr.token.column,"INTERNAL error: could not resolve type of literal expression " + expr);
       return null;
     }
 
     if (expr.type == LoxType.BOOL) {
-      ExprNode bool = new ExprNode(LoxType.BOOL);
-      add(assign(bool, "load i1, i1* "
-            + ((boolean)expr.value ? CONST_TRUE : CONST_FALSE)));
-      return bool;
+      return emit(new IR.Load(tmp(LoxType.BOOL), (boolean)expr.value ? constTrue : constFalse));
     }
 
     // note: adding global constant
-    ExprNode constant = new ExprNode("@constant" + currentVariables++,
-        llvmTypes.get(expr.type));
+    String constant = "@constant" + currentVariables++;
 
     if (expr.type == LoxType.INT || expr.type == LoxType.DOUBLE) {
-      add(String.format("%s = constant %s %s",
-            constant.register, constant.llvmType, expr.value.toString()), 0);
-      ExprNode literal = new ExprNode(expr.type);
-      add(assign(literal, String.format("load %s, %s* %s",
-              literal.llvmType, literal.llvmType, constant.register)));
-      return literal;
-    }
-
-    ExprNode result = new ExprNode(expr.type);
-
-    if (expr.type == LoxType.STRING) {
-      String type = String.format("[%d x i8]", expr.value.toString().getBytes().length + 1);
-
-      add(String.format("%s = %s %s c\"%s\\00\"",
-            constant.register, LLVM_CONST, type, expr.value), 0);
-      add(assign(result, String.format("getelementptr %s, %s* %s, i32 0, i64 0",
-              type, type, constant.register)));
-      return result;
+      IR.Global global = module.global(constant, "constant", llvmTypes.get(expr.type), expr.value.toString());
+      return emit(new IR.Load(tmp(expr.type), global));
+    } else if (expr.type == LoxType.STRING) {
+      return pointer(module.string(constant, (String)expr.value));
     } else if (expr.type == LoxType.VOID) {
       // e.g. print f(); where f is a void function
-      add(assign(result, String.format("getelementptr [5 x i8], [5 x i8]* %s, i32 0, i64 0",
-              PUTS_NULL)));
-      return result;
+      return pointer(putsNull);
     }
 
     throw new IllegalArgumentException("Unknown literal type " + expr.type);
   }
 
-  private String loadStringPointer(String register, int length) {
-    String type = String.format("[%d x i8]", length);
-    return String.format("getelementptr %s, %s* %s, i32 0, i64 0",
-            type, type, register);
-  }
-
-  private String getTmp() {
-    return "%tmp" + currentIntermediates++;
+  private IR.Value pointer(IR.Global string) {
+    return emit(new IR.ElementPointer(tmp(LoxType.STRING), string));
   }
 
-  private String assign(ExprNode node, String s) {
-    return node.register + " = " + s;
+  private void puts(IR.Value string) {
+    emit(new IR.Call(null, "i32", null, "@puts", List.of(string)));
   }
 
-  // default to current function context
-  private void add(String s) {
-    add(s, context);
+  private void printf(IR.Global format, IR.Value value) {
+    emit(new IR.Call(null, "i32", "(i8*, ...)", "@printf", List.of(pointer(format), value)));
   }
 
-  private void add(String s, int context) {
-    // allow all functions to be at top level
-    // allow global contexts
-    // allow default to be inside main function
-    while (assembly.size() <= context) assembly.add(new ArrayList<>());
-    assembly.get(context).add(s);
+  /* the value of `value` as if assigned to a variable of type `to` */
+  private IR.Value convert(IR.Value value, LoxType from, LoxType to) {
+    String instruction;
+    if (from == LoxType.BOOL && to == LoxType.INT) instruction = "zext";
+    else if (from == LoxType.BOOL && to == LoxType.DOUBLE) instruction = "uitofp";
+    else if (from == LoxType.INT && to == LoxType.DOUBLE) instruction = "sitofp";
+    else if (from == LoxType.DOUBLE && to == LoxType.INT) instruction = "fptosi";
+    else return value;
+    return emit(new IR.Cast(tmp(to), instruction, value));
   }
 
   /*
-   * 2D -> 1D; in python would be [item for sublist in array for item in sublist]
-   * see https://stackoverflow.com/q/8559092
-   * as well as https://stackoverflow.com/q/952914
+   * phis for the variables a loop changes, at the start of the loop.
+   * We only know where they come from after the body, so they start out empty.
    */
-  private static <T> List<T> flatten(List<List<T>> list) {
-    List<T> result = new ArrayList<>();
-    for (List<T> sublist : list) {
-      result.addAll(sublist);
+  private Map<Integer, IR.Phi> loopPhis(Stmt.While loop) {
+    Assignments assignments = new Assignments();
+    loop.condition.accept(assignments);
+    loop.body.accept(assignments);
+    BitSet assigned = assignments.assigned;
+    Map<Integer, IR.Phi> result = new HashMap<>();
+    for (int id = assigned.nextSetBit(0); id >= 0; id = assigned.nextSetBit(id + 1)) {
+      // declared inside the loop, or kept in memory
+      if (variables[id] == null || !inRegister(variables[id])) continue;
+      IR.Phi phi = new IR.Phi(new IR.Value(variables[id].type, phiRegister(id)));
+      result.put(id, phi);
+      variables[id] = emit(phi);
     }
     return result;
   }
 
-  class ExprNode {
-    final String register;
-    final String llvmType;
+  /* the alloca, global or (with --ssa) current value of a variable */
+  private IR.Value variable(Expr.Symbol symbol) {
+    IR.Value var = variables[symbol.id];
+    if (var != null) return var;
+    // a local of an enclosing function, which the VM and the JVM backend don't allow either
+    error(symbol.token, "INTERNAL error: closures not implemented; '" + symbol.token.lexeme
+        + "' belongs to an enclosing function");
+    IR.Value zero = new IR.Value(llvmTypes.get(symbol.type), "zeroinitializer");
+    return ssa ? zero : new IR.Value(zero.type + '*', "null");
+  }
 
-    ExprNode(LoxType type) {
-      this(getTmp(), llvmTypes.get(type));
+  private boolean inRegister(IR.Value var) {
+    return ssa && !(var instanceof IR.Global);
+  }
+
+  /* start a block reached from `edges`, merging the variables that differ between them */
+  private void join(IR.Block label, List<Edge> edges) {
+    place(label);
+    if (!ssa || edges.isEmpty()) return;
+    for (int id = 0; id < variables.length; id++) {
+      IR.Value first = edges.get(0).values[id], declared = first;
+      boolean same = true;
+      for (Edge edge : edges) {
+        same &= edge.values[id] == first;
+        if (declared == null) declared = edge.values[id];
+      }
+      if (same) {
+        variables[id] = first;
+      } else {
+        IR.Phi phi = new IR.Phi(new IR.Value(declared.type, phiRegister(id)));
+        incoming(phi, id, edges);
+        variables[id] = emit(phi);
+      }
     }
+  }
 
-    ExprNode(String register, String type) {
-      this.register = register;
-      llvmType = type;
+  private void incoming(IR.Phi phi, int id, List<Edge> edges) {
+    for (Edge edge : edges) {
+      IR.Value value = edge.values[id];
+      // only declared on some paths
+      phi.add(value == null ? new IR.Value(phi.result.type, "zeroinitializer") : value, edge.block);
     }
+  }
+
+  private String phiRegister(int id) {
+    return "%" + name(id) + "_phi" + currentVariables++;
+  }
+
+  /* where we are now, to jump somewhere else */
+  private Edge edge() {
+    return new Edge(block, ssa ? variables.clone() : null);
+  }
+
+  private void restore(Edge edge) {
+    if (ssa) System.arraycopy(edge.values, 0, variables, 0, variables.length);
+  }
+
+  /* jump to `target`, unless the current block already ended */
+  private void branch(IR.Block target, List<Edge> edges) {
+    if (block.terminated()) return;
+    edges.add(edge());
+    emit(new IR.Branch(target));
+  }
+
+  private void place(IR.Block next) {
+    function.blocks.add(next);
+    block = next;
+  }
+
+  /* add to the current block; returns the result */
+  private IR.Value emit(IR.Instruction instruction) {
+    // code after a return, break or continue needs a block of its own, even if nothing jumps there
+    if (block.terminated()) place(new IR.Block("DeadLabel" + currentLabel++));
+    block.add(instruction);
+    return instruction.result;
+  }
+
+  /* the mangled name of a symbol */
+  private String name(Expr.Symbol symbol) {
+    return name(symbol.id);
+  }
+
+  private String name(int id) {
+    return symbols.name(id);
+  }
+
+  private IR.Value tmp(LoxType type) {
+    return new IR.Value(llvmTypes.get(type), "%tmp" + currentIntermediates++);
+  }
+
+  /* a jump from `block`, with the values of the variables at that point (only with --ssa) */
+  static class Edge {
+    final IR.Block block;
+    final IR.Value[] values;
 
-    public String toString() {
-      return llvmType + ' ' + register;
+    Edge(IR.Block block, IR.Value[] values) {
+      this.block = block;
+      this.values = values;
     }
   }
 
-  class LoopNode {
-    final String startLabel, endLabel;
+  static class LoopNode {
+    final IR.Block start, end;
+    // jumps to the start and to the end
+    final List<Edge> continues = new ArrayList<>(), breaks = new ArrayList<>();
 
-    LoopNode(String start, String end) {
-      this.startLabel = start;
-      this.endLabel = end;
+    LoopNode(IR.Block start, IR.Block end) {
+      this.start = start;
+      this.end = end;
     }
   }
 }
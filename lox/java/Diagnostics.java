@@ -0,0 +1,59 @@
+package lox.java;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Collects the errors for one compilation.
+ * Nothing is formatted (and no source lines are looked up) until flush().
+ */
+class Diagnostics {
+  private final Source source;
+  private final List<Diagnostic> errors = new ArrayList<>();
+  private int flushed = 0;
+
+  Diagnostics(Source source) {
+    this.source = source;
+  }
+
+  void error(int line, int column, String message) {
+    errors.add(new Diagnostic(line, column, message));
+  }
+
+  int count() {
+    return errors.size();
+  }
+
+  /* print every error reported since the last flush */
+  void flush(PrintStream out) {
+    if (flushed == errors.size()) return;
+    StringBuilder builder = new StringBuilder();
+    for (; flushed < errors.size(); flushed++) {
+      errors.get(flushed).render(builder);
+    }
+    out.print(builder);
+    out.flush();
+  }
+
+  private class Diagnostic {
+    // note: line is 1-indexed, column is 0-indexed
+    final int line, column;
+    final String message;
+
+    Diagnostic(int line, int column, String message) {
+      this.line = line;
+      this.column = column;
+      this.message = message;
+    }
+
+    void render(StringBuilder builder) {
+      builder.append(String.format("%s:%d:%d: error: %s%n", source.name, line, column, message));
+      // some errors (e.g. failing to write a file) don't have a location
+      if (line < 1) return;
+      builder.append(source.line(line)).append(System.lineSeparator());
+      for (int i = 1; i < column; i++) builder.append(' ');
+      builder.append('^').append(System.lineSeparator());
+    }
+  }
+}
@@ -0,0 +1,323 @@
+package lox.java;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import static lox.java.LoxType.*;
+
+/*
+ * Runs a program straight from the annotated AST, in the JVM,
+ * instead of going through LLVM and lli.
+ *
+ * Every scope gets an Environment, and variables are found by the (depth, slot)
+ * the Resolver computed, so there are no name lookups at runtime.
+ * Annotate has already checked the types, so operators switch on the static type
+ * of their operands and work on unboxed ints, doubles and booleans.
+ */
+class Evaluator extends Pass<List<Stmt>, Void>
+  implements Stmt.Visitor<Void>, Expr.Visitor<Object> {
+  private static final Jump BREAK = new Jump(), CONTINUE = new Jump(), RETURN = new Jump();
+
+  private final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+  private Environment environment = new Environment(null);
+  // set by `return` just before it throws RETURN
+  private Object returnValue = null;
+
+  Evaluator(CompilationContext context, List<Stmt> input) {
+    super(context, input);
+  }
+
+  Void runPass() {
+    try {
+      for (Stmt stmt : input) {
+        stmt.accept(this);
+      }
+    } catch (RuntimeError e) {
+      error(e.token, e.getMessage());
+    } catch (StackOverflowError e) {
+      error(-1, -1, "Stack overflow");
+    } finally {
+      out.flush();
+    }
+    return null;
+  }
+
+  public Void visitStmt(Stmt.Expression stmt) {
+    stmt.expression.accept(this);
+    return null;
+  }
+
+  public Void visitStmt(Stmt.Print stmt) {
+    Object value = stmt.expression.accept(this);
+    switch (stmt.expression.type) {
+      case INT:
+        out.print(((Number)value).intValue());
+        break;
+      case DOUBLE:
+        out.print(LoxRuntime.format(((Number)value).doubleValue()));
+        break;
+      case VOID:
+        out.print("null");
+        break;
+      default:
+        out.print(value);
+    }
+    out.print('\n');
+    return null;
+  }
+
+  public Void visitStmt(Stmt.Var var) {
+    environment.define(var.identifier.slot, zero(var.identifier.type));
+    if (var.equals != null) var.equals.accept(this);
+    return null;
+  }
+
+  public Void visitStmt(Stmt.Block block) {
+    Environment previous = environment;
+    environment = new Environment(previous);
+    try {
+      for (Stmt stmt : block.statements) {
+        stmt.accept(this);
+      }
+    } finally {
+      environment = previous;
+    }
+    return null;
+  }
+
+  public Void visitStmt(Stmt.If stmt) {
+    if (bool(stmt.condition)) stmt.then.accept(this);
+    else if (stmt.otherwise != null) stmt.otherwise.accept(this);
+    return null;
+  }
+
+  public Void visitStmt(Stmt.While stmt) {
+    while (bool(stmt.condition)) {
+      try {
+        stmt.body.accept(this);
+      } catch (Jump jump) {
+        if (jump == BREAK) break;
+        if (jump != CONTINUE) throw jump;
+      }
+    }
+    return null;
+  }
+
+  public Void visitStmt(Stmt.LoopControl keyword) {
+    throw keyword.token.type == Token.Type.BREAK ? BREAK : CONTINUE;
+  }
+
+  public Void visitStmt(Stmt.Function func) {
+    environment.define(func.identifier.slot, new Function(func, environment));
+    return null;
+  }
+
+  public Void visitStmt(Stmt.Return stmt) {
+    returnValue = stmt.value == null ? null : stmt.value.accept(this);
+    throw RETURN;
+  }
+
+  public Object visitExpr(Expr.Literal expr) { return expr.value; }
+  public Object visitExpr(Expr.Grouping expr) { return expr.expression.accept(this); }
+
+  public Object visitExpr(Expr.Symbol symbol) {
+    return environment.ancestor(symbol.depth).values[symbol.slot];
+  }
+
+  public Object visitExpr(Expr.Assign expr) {
+    Object value = coerce(expr.rvalue.accept(this), expr.lvalue.type);
+    environment.ancestor(expr.lvalue.depth).values[expr.lvalue.slot] = value;
+    return value;
+  }
+
+  public Object visitExpr(Expr.Unary expr) {
+    if (expr.token.type == Token.Type.BANG) return !bool(expr.right);
+    if (expr.type == DOUBLE) return -number(expr.right);
+    return -integer(expr.right);
+  }
+
+  public Object visitExpr(Expr.Logical expr) {
+    if (expr.token.type == Token.Type.OR) return bool(expr.left) || bool(expr.right);
+    return bool(expr.left) && bool(expr.right);
+  }
+
+  public Object visitExpr(Expr.Binary expr) {
+    Token.Type operator = expr.token.type;
+    if (operator == Token.Type.COMMA) {
+      expr.left.accept(this);
+      return expr.right.accept(this);
+    }
+    LoxType operands = operands(expr.left.type, expr.right.type);
+    if (operands == INT) return binary(expr, integer(expr.left), integer(expr.right));
+    if (operands == DOUBLE) return binary(expr, number(expr.left), number(expr.right));
+    if (operands == BOOL) {
+      Object result = binary(expr, bool(expr.left) ? 1 : 0, bool(expr.right) ? 1 : 0);
+      // arithmetic on booleans wraps around like any other 1-bit integer
+      return result instanceof Integer ? ((Integer)result & 1) != 0 : result;
+    }
+
+    Object left = expr.left.accept(this), right = expr.right.accept(this);
+    if (operator == Token.Type.EQUAL_EQUAL) return left.equals(right);
+    if (operator == Token.Type.BANG_EQUAL) return !left.equals(right);
+    if (operator == Token.Type.PLUS && operands == STRING) return (String)left + right;
+    throw new RuntimeError(expr.token, "Illegal operator '" + expr.token.lexeme + "' for type " + operands);
+  }
+
+  public Object visitExpr(Expr.Call call) {
+    Function function = (Function)visitExpr(call.callee);
+    List<Expr.Symbol> parameters = function.declaration.arguments;
+    Environment frame = new Environment(function.closure);
+    for (int i = 0; i < parameters.size(); i++) {
+      frame.define(i, coerce(call.arguments.get(i).accept(this), parameters.get(i).type));
+    }
+
+    Environment previous = environment;
+    environment = frame;
+    try {
+      for (Stmt stmt : function.declaration.body.statements) {
+        stmt.accept(this);
+      }
+    } catch (Jump jump) {
+      if (jump != RETURN) throw jump;
+    } finally {
+      environment = previous;
+    }
+    Object result = returnValue;
+    returnValue = null;
+    return result;
+  }
+
+  private Object binary(Expr.Binary expr, int left, int right) {
+    switch (expr.token.type) {
+      case PLUS: return left + right;
+      case MINUS: return left - right;
+      case STAR: return left * right;
+      case SLASH:
+        if (right == 0) throw new RuntimeError(expr.token, "Division by zero");
+        return left / right;
+      case PERCENT:
+        if (right == 0) throw new RuntimeError(expr.token, "Division by zero");
+        return left % right;
+      case AMPERSAND: return left & right;
+      case PIPE: return left | right;
+      case CARET: return left ^ right;
+      case EQUAL_EQUAL: return left == right;
+      case BANG_EQUAL: return left != right;
+      case LESS: return left < right;
+      case LESS_EQUAL: return left <= right;
+      case GREATER: return left > right;
+      case GREATER_EQUAL: return left >= right;
+      default:
+        throw new RuntimeError(expr.token, "Illegal operator '" + expr.token.lexeme + "' for type INT");
+    }
+  }
+
+  private Object binary(Expr.Binary expr, double left, double right) {
+    switch (expr.token.type) {
+      case PLUS: return left + right;
+      case MINUS: return left - right;
+      case STAR: return left * right;
+      case SLASH: return left / right;
+      case PERCENT: return left % right;
+      case EQUAL_EQUAL: return left == right;
+      // ordered comparison, like fcmp one: NaN is never unequal
+      case BANG_EQUAL: return left < right || left > right;
+      case LESS: return left < right;
+      case LESS_EQUAL: return left <= right;
+      case GREATER: return left > right;
+      case GREATER_EQUAL: return left >= right;
+      default:
+        throw new RuntimeError(expr.token, "Illegal operator '" + expr.token.lexeme + "' for type DOUBLE");
+    }
+  }
+
+  /* the fast paths: Annotate guarantees `expr` has a compatible static type */
+  private int integer(Expr expr) {
+    if (expr.type == BOOL) return bool(expr) ? 1 : 0;
+    return ((Number)expr.accept(this)).intValue();
+  }
+
+  private double number(Expr expr) {
+    if (expr.type == BOOL) return bool(expr) ? 1 : 0;
+    return ((Number)expr.accept(this)).doubleValue();
+  }
+
+  private boolean bool(Expr expr) {
+    return (Boolean)expr.accept(this);
+  }
+
+  /* the type both operands are promoted to, or null if they can't be */
+  private static LoxType operands(LoxType left, LoxType right) {
+    if (left == right) return left;
+    if (left == STRING || left == VOID || right == STRING || right == VOID) return null;
+    return left.compareTo(right) > 0 ? left : right;
+  }
+
+  private static Object coerce(Object value, LoxType type) {
+    if (value instanceof Boolean && (type == INT || type == DOUBLE)) {
+      value = (Boolean)value ? 1 : 0;
+    }
+    if (type == DOUBLE && value instanceof Integer) return ((Integer)value).doubleValue();
+    if (type == INT && value instanceof Double) return ((Double)value).intValue();
+    return value;
+  }
+
+  private static Object zero(LoxType type) {
+    switch (type) {
+      case BOOL: return false;
+      case INT: return 0;
+      case DOUBLE: return 0.0;
+      case STRING: return "";
+      default: return null;
+    }
+  }
+
+  private static class Environment {
+    final Environment enclosing;
+    Object[] values = new Object[4];
+
+    Environment(Environment enclosing) {
+      this.enclosing = enclosing;
+    }
+
+    Environment ancestor(int depth) {
+      Environment result = this;
+      while (depth-- > 0) result = result.enclosing;
+      return result;
+    }
+
+    void define(int slot, Object value) {
+      if (slot >= values.length) values = Arrays.copyOf(values, Math.max(slot + 1, values.length * 2));
+      values[slot] = value;
+    }
+  }
+
+  private static class Function {
+    final Stmt.Function declaration;
+    final Environment closure;
+
+    Function(Stmt.Function declaration, Environment closure) {
+      this.declaration = declaration;
+      this.closure = closure;
+    }
+  }
+
+  /* unwinds to the enclosing loop or call; allocated once, without a stack trace */
+  @SuppressWarnings("serial")
+  private static class Jump extends RuntimeException {
+    Jump() { super(null, null, false, false); }
+  }
+
+  @SuppressWarnings("serial")
+  private static class RuntimeError extends RuntimeException {
+    final Token token;
+
+    RuntimeError(Token token, String message) {
+      super(message);
+      this.token = token;
+    }
+  }
+}
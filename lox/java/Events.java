@@ -0,0 +1,90 @@
+package lox.java;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+ * Flight Recorder events, so `jcmd <pid> JFR.start` shows each compilation
+ * next to GC and JIT activity. Events that aren't enabled cost almost nothing.
+ */
+final class Events {
+  private Events() {}
+
+  private static final String OK = "ok", ERROR = "error", EXCEPTION = "exception";
+
+  /* run a single pass inside a PassEvent */
+  static <Return> Return run(Pass<?, Return> pass) {
+    PassEvent event = new PassEvent();
+    event.begin();
+    String outcome = EXCEPTION;
+    try {
+      Return result = pass.runPass();
+      outcome = pass.context.hadError() ? ERROR : OK;
+      return result;
+    } finally {
+      event.end();
+      if (event.shouldCommit()) {
+        event.pass = pass.getClass().getSimpleName();
+        event.source = pass.context.source.name;
+        event.size = pass.context.source.length();
+        event.outcome = outcome;
+        event.commit();
+      }
+    }
+  }
+
+  /* start an external tool inside a ToolEvent and wait for it */
+  static int run(Source source, ProcessBuilder command) throws java.io.IOException, InterruptedException {
+    ToolEvent event = new ToolEvent();
+    event.begin();
+    int status = -1;
+    try {
+      status = command.start().waitFor();
+      return status;
+    } finally {
+      event.end();
+      if (event.shouldCommit()) {
+        event.tool = command.command().get(0);
+        event.command = String.join(" ", command.command());
+        event.source = source.name;
+        event.size = source.length();
+        event.status = status;
+        event.commit();
+      }
+    }
+  }
+
+  @Name("lox.Pass")
+  @Label("Compiler Pass")
+  @Category("Lox")
+  static class PassEvent extends Event {
+    @Label("Pass")
+    String pass;
+    @Label("Source")
+    String source;
+    @Label("Source Size")
+    int size;
+    // "ok", "error" or "exception"
+    @Label("Outcome")
+    String outcome;
+  }
+
+  @Name("lox.Tool")
+  @Label("External Tool")
+  @Category("Lox")
+  static class ToolEvent extends Event {
+    @Label("Tool")
+    String tool;
+    @Label("Command Line")
+    String command;
+    @Label("Source")
+    String source;
+    @Label("Source Size")
+    int size;
+    // -1 if the tool couldn't be started or was interrupted
+    @Label("Exit Status")
+    int status;
+  }
+}
@@ -0,0 +1,284 @@
+package lox.java;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import static lox.java.LoxType.*;
+
+/*
+ * Constant folding and propagation on the annotated AST.
+ *
+ * Operators on literals become literals, following the same promotion rules as the backends;
+ * `and`/`or` short circuit on a literal left side; `if` and `while` with a literal condition
+ * lose their dead branch. Variables initialized with a constant and never assigned again
+ * are replaced by that constant.
+ *
+ * Since the fields of the AST are final, anything with a folded child is rebuilt.
+ * Blocks are never removed or merged, so the Resolver's (depth, slot) stay valid.
+ * Division by a constant zero is left alone, so the backends can report it.
+ */
+class Fold extends Pass<List<Stmt>, List<Stmt>>
+  implements Stmt.Visitor<Stmt>, Expr.Visitor<Expr> {
+  // indexed by mangled id
+  private final Expr.Literal[] constants = new Expr.Literal[context.symbols.size()];
+  private BitSet assigned;
+  private int folded = 0;
+
+  Fold(CompilationContext context, List<Stmt> input) {
+    super(context, input);
+  }
+
+  public List<Stmt> runPass() {
+    assigned = Assignments.in(input);
+    List<Stmt> result = foldAll(input);
+    context.statistics.count("foldedExpressions", folded);
+    return result;
+  }
+
+  public Stmt visitStmt(Stmt.Expression stmt) {
+    return new Stmt.Expression(stmt.expression.accept(this), stmt.token);
+  }
+
+  public Stmt visitStmt(Stmt.Print stmt) {
+    return new Stmt.Print(stmt.expression.accept(this), stmt.token);
+  }
+
+  public Stmt visitStmt(Stmt.Var var) {
+    if (var.equals == null) return var;
+    Expr.Assign equals = (Expr.Assign)visitExpr(var.equals);
+    if (equals.rvalue instanceof Expr.Literal && !assigned.get(var.identifier.id)) {
+      Object value = coerce(((Expr.Literal)equals.rvalue).value, var.identifier.type);
+      if (value != null) {
+        constants[var.identifier.id] = new Expr.Literal(value, equals.rvalue.token, var.identifier.type);
+      }
+    }
+    return new Stmt.Var(var.identifier, equals, var.token);
+  }
+
+  public Stmt visitStmt(Stmt.Block block) {
+    return new Stmt.Block(foldAll(block.statements), block.token);
+  }
+
+  public Stmt visitStmt(Stmt.If stmt) {
+    Expr condition = stmt.condition.accept(this);
+    if (condition instanceof Expr.Literal) {
+      Stmt taken = (boolean)((Expr.Literal)condition).value ? stmt.then : stmt.otherwise,
+           dead = taken == stmt.then ? stmt.otherwise : stmt.then;
+      if (!declares(dead)) {
+        folded++;
+        return taken == null ? null : taken.accept(this);
+      }
+    }
+    Stmt then = stmt.then.accept(this),
+         otherwise = stmt.otherwise == null ? null : stmt.otherwise.accept(this);
+    // keep the If even if a branch folded away, it might still be reachable
+    if (then == null) then = new Stmt.Block(new ArrayList<>(), stmt.then.token);
+    if (otherwise == null && stmt.otherwise != null) {
+      otherwise = new Stmt.Block(new ArrayList<>(), stmt.otherwise.token);
+    }
+    return new Stmt.If(condition, then, otherwise, stmt.token);
+  }
+
+  public Stmt visitStmt(Stmt.While stmt) {
+    Expr condition = stmt.condition.accept(this);
+    if (condition instanceof Expr.Literal && !(boolean)((Expr.Literal)condition).value
+        && !declares(stmt.body)) {
+      folded++;
+      return null;
+    }
+    Stmt body = stmt.body.accept(this);
+    if (body == null) body = new Stmt.Block(new ArrayList<>(), stmt.body.token);
+    return new Stmt.While(condition, body, stmt.token);
+  }
+
+  public Stmt visitStmt(Stmt.LoopControl keyword) { return keyword; }
+
+  public Stmt visitStmt(Stmt.Function func) {
+    return new Stmt.Function(func.identifier, func.arguments,
+        (Stmt.Block)visitStmt(func.body), func.token);
+  }
+
+  public Stmt visitStmt(Stmt.Return stmt) {
+    return stmt.value == null ? stmt : new Stmt.Return(stmt.value.accept(this), stmt.token);
+  }
+
+  public Expr visitExpr(Expr.Literal expr) { return expr; }
+
+  public Expr visitExpr(Expr.Grouping expr) {
+    // only the parser cares about parentheses
+    return expr.expression.accept(this);
+  }
+
+  public Expr visitExpr(Expr.Symbol symbol) {
+    Expr.Literal constant = constants[symbol.id];
+    if (constant == null) return symbol;
+    folded++;
+    return new Expr.Literal(constant.value, symbol.token, constant.type);
+  }
+
+  public Expr visitExpr(Expr.Assign expr) {
+    return new Expr.Assign(expr.lvalue, expr.rvalue.accept(this), expr.token, expr.type);
+  }
+
+  public Expr visitExpr(Expr.Call call) {
+    List<Expr> arguments = new ArrayList<>(call.arguments.size());
+    for (Expr argument : call.arguments) {
+      arguments.add(argument.accept(this));
+    }
+    return new Expr.Call(call.callee, arguments, call.token, call.type);
+  }
+
+  public Expr visitExpr(Expr.Unary expr) {
+    Expr right = expr.right.accept(this);
+    if (right instanceof Expr.Literal) {
+      Object value = ((Expr.Literal)right).value;
+      if (expr.token.type == Token.Type.BANG) return literal(!(boolean)value, expr);
+      if (value instanceof Double) return literal(-(double)value, expr);
+      if (value instanceof Integer) return literal(-(int)value, expr);
+    }
+    return new Expr.Unary(right, expr.token, expr.type);
+  }
+
+  public Expr visitExpr(Expr.Logical expr) {
+    Expr left = expr.left.accept(this), right = expr.right.accept(this);
+    boolean or = expr.token.type == Token.Type.OR;
+    if (left instanceof Expr.Literal) {
+      folded++;
+      // `true or x` and `false and x` never evaluate x
+      return (boolean)((Expr.Literal)left).value == or ? literal(or, expr) : right;
+    }
+    // `x or false` and `x and true` are just x
+    if (right instanceof Expr.Literal && (boolean)((Expr.Literal)right).value != or) {
+      folded++;
+      return left;
+    }
+    return new Expr.Logical(left, right, expr.token, expr.type);
+  }
+
+  public Expr visitExpr(Expr.Binary expr) {
+    Expr left = expr.left.accept(this), right = expr.right.accept(this);
+    if (expr.token.type == Token.Type.COMMA && left instanceof Expr.Literal) {
+      folded++;
+      return right;
+    }
+    if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+      Object value = binary(expr, ((Expr.Literal)left).value, ((Expr.Literal)right).value);
+      if (value != null) return literal(value, expr);
+    }
+    return new Expr.Binary(left, right, expr.token, expr.type);
+  }
+
+  /* the value of a binary operator on two constants, or null if it can't (or shouldn't) be folded */
+  private static Object binary(Expr.Binary expr, Object left, Object right) {
+    Token.Type operator = expr.token.type;
+    LoxType operands = operands(expr.left.type, expr.right.type);
+    if (operands == INT || operands == BOOL) {
+      // literal() wraps booleans around
+      return binary(operator, integer(left), integer(right));
+    }
+    if (operands == DOUBLE) return binary(operator, real(left), real(right));
+    if (operands == STRING && operator == Token.Type.EQUAL_EQUAL) return left.equals(right);
+    if (operands == STRING && operator == Token.Type.BANG_EQUAL) return !left.equals(right);
+    return null;
+  }
+
+  /* comparisons return 0 or 1 */
+  private static Integer binary(Token.Type operator, int left, int right) {
+    switch (operator) {
+      case PLUS: return left + right;
+      case MINUS: return left - right;
+      case STAR: return left * right;
+      case SLASH: return right == 0 ? null : left / right;
+      case PERCENT: return right == 0 ? null : left % right;
+      case AMPERSAND: return left & right;
+      case PIPE: return left | right;
+      case CARET: return left ^ right;
+      case EQUAL_EQUAL: return left == right ? 1 : 0;
+      case BANG_EQUAL: return left != right ? 1 : 0;
+      case LESS: return left < right ? 1 : 0;
+      case LESS_EQUAL: return left <= right ? 1 : 0;
+      case GREATER: return left > right ? 1 : 0;
+      case GREATER_EQUAL: return left >= right ? 1 : 0;
+      default: return null;
+    }
+  }
+
+  private static Object binary(Token.Type operator, double left, double right) {
+    switch (operator) {
+      case PLUS: return finite(left + right);
+      case MINUS: return finite(left - right);
+      case STAR: return finite(left * right);
+      case SLASH: return finite(left / right);
+      case PERCENT: return finite(left % right);
+      case EQUAL_EQUAL: return left == right;
+      // ordered comparison, like fcmp one: NaN is never unequal
+      case BANG_EQUAL: return left < right || left > right;
+      case LESS: return left < right;
+      case LESS_EQUAL: return left <= right;
+      case GREATER: return left > right;
+      case GREATER_EQUAL: return left >= right;
+      default: return null;
+    }
+  }
+
+  /* like division by zero for ints, infinity and NaN are left for runtime: the IR printer can't spell them */
+  private static Double finite(double value) {
+    return Double.isFinite(value) ? value : null;
+  }
+
+  /* a literal of the type Annotate gave `expr` */
+  private Expr literal(Object value, Expr expr) {
+    value = coerce(value, expr.type);
+    if (value == null) return expr;
+    folded++;
+    return new Expr.Literal(value, expr.token, expr.type);
+  }
+
+  private static Object coerce(Object value, LoxType type) {
+    switch (type) {
+      case BOOL:
+        if (value instanceof Integer) return ((int)value & 1) != 0;
+        return value instanceof Boolean ? value : null;
+      case INT:
+        return value instanceof Double ? null : integer(value);
+      case DOUBLE:
+        return real(value);
+      case STRING:
+        return value instanceof String ? value : null;
+      default:
+        return null;
+    }
+  }
+
+  private static int integer(Object value) {
+    if (value instanceof Boolean) return (boolean)value ? 1 : 0;
+    return ((Number)value).intValue();
+  }
+
+  private static double real(Object value) {
+    if (value instanceof Boolean) return (boolean)value ? 1 : 0;
+    return ((Number)value).doubleValue();
+  }
+
+  /* the type both operands are promoted to, or null if they can't be */
+  private static LoxType operands(LoxType left, LoxType right) {
+    if (left == right) return left;
+    if (left == STRING || left == VOID || right == STRING || right == VOID) return null;
+    return left.compareTo(right) > 0 ? left : right;
+  }
+
+  /* a statement that isn't a block can declare a name in the enclosing scope */
+  private static boolean declares(Stmt stmt) {
+    return stmt instanceof Stmt.Var || stmt instanceof Stmt.Function;
+  }
+
+  private List<Stmt> foldAll(List<Stmt> statements) {
+    List<Stmt> result = new ArrayList<>(statements.size());
+    for (Stmt stmt : statements) {
+      Stmt folded = stmt.accept(this);
+      if (folded != null) result.add(folded);
+    }
+    return result;
+  }
+}
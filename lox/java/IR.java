@@ -0,0 +1,560 @@
+package lox.java;
+
+import java.io.BufferedWriter;
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * An LLVM module: Compiler builds it a function at a time, Writer finishes it.
+ *
+ * Finished functions are printed and dropped right away, so only the globals
+ * and the function being compiled are in memory. main is the exception:
+ * nested functions finish in the middle of it, so the parts of main that can't change anymore
+ * go to a separate file, which is appended at the end. LLVM doesn't mind
+ * functions using globals that are only declared after them.
+ * With pipe(), the module goes straight into a running tool instead, and main waits in memory.
+ * For bitcode, which needs the whole module at once, inMemory() keeps the functions instead.
+ *
+ * Types are kept in LLVM syntax ("i32", "i8*", ...); BitcodeWriter parses the few it sees.
+ * There are only the instructions Compiler needs.
+ */
+class IR {
+  // `declare`s for the C functions we call, printed as is
+  final List<String> declarations = new ArrayList<>();
+  final List<Global> globals = new ArrayList<>();
+  // the finished functions, in the order they ended; only for inMemory()
+  final List<Function> functions = new ArrayList<>();
+  // only for open()
+  private final Path path, mainPath;
+  private final FileChannel file;
+  // only for pipe() and inMemory(tools); what reads the module
+  private final ToolPipeline tools;
+  // only for pipe()
+  private final CharArrayWriter mainBuffer;
+  // PrintWriter swallows exceptions; see finish(). null for inMemory()
+  private final PrintWriter out, mainOut;
+  private Function main;
+  private int size = 0;
+
+  private IR(Path path, Path mainPath) throws IOException {
+    this.path = path;
+    this.mainPath = mainPath;
+    file = FileChannel.open(path, StandardOpenOption.WRITE);
+    out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(file),
+        StandardCharsets.UTF_8)));
+    mainOut = new PrintWriter(Files.newBufferedWriter(mainPath));
+    tools = null;
+    mainBuffer = null;
+  }
+
+  private IR(ToolPipeline tools, boolean stream) {
+    path = mainPath = null;
+    file = null;
+    this.tools = tools;
+    if (stream) {
+      out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(tools.input(), StandardCharsets.UTF_8)));
+      mainBuffer = new CharArrayWriter();
+      mainOut = new PrintWriter(mainBuffer);
+    } else {
+      out = mainOut = null;
+      mainBuffer = null;
+    }
+  }
+
+  /* a module written to a new temporary file */
+  static IR open() throws IOException {
+    return new IR(Files.createTempFile("lox-llvm-asm", ".ll"), Files.createTempFile("lox-llvm-main", ".ll"));
+  }
+
+  /* a module written to the input of `tools`, which have to be started already */
+  static IR pipe(ToolPipeline tools) {
+    return new IR(tools, true);
+  }
+
+  /* a module that keeps everything until it's written out by someone else, maybe to `tools` */
+  static IR inMemory(ToolPipeline tools) {
+    return new IR(tools, false);
+  }
+
+  /* null unless the module is going to them */
+  ToolPipeline tools() {
+    return tools;
+  }
+
+  Global global(String name, String linkage, String contents, String initializer) {
+    Global global = new Global(name, linkage, contents, initializer);
+    globals.add(global);
+    return global;
+  }
+
+  /* a NUL-terminated array of bytes */
+  Global string(String name, String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    StringBuilder initializer = new StringBuilder("c\"");
+    for (byte b : bytes) {
+      if (b >= 0x20 && b < 0x7f && b != '"' && b != '\\') initializer.append((char)b);
+      else initializer.append(String.format("\\%02X", b & 0xff));
+    }
+    return global(name, "private unnamed_addr constant",
+        "[" + (bytes.length + 1) + " x i8]", initializer.append("\\00\"").toString());
+  }
+
+  Function main() {
+    return main = new Function("@main", "i32", List.of());
+  }
+
+  Function function(String name, String returnType, List<Value> parameters) {
+    return new Function(name, returnType, parameters);
+  }
+
+  /* print the blocks of `function` that are finished, i.e. all but the last */
+  void flush(Function function) {
+    if (out != null) function.print(output(function), false);
+  }
+
+  /* print the rest of `function` */
+  void end(Function function) {
+    if (out != null) {
+      function.print(output(function), true);
+      return;
+    }
+    for (Block block : function.blocks) {
+      size += block.instructions.size();
+    }
+    functions.add(function);
+  }
+
+  /* the number of instructions finished so far */
+  int size() {
+    return size;
+  }
+
+  /* print main and the globals, and close the file (or pipe, which returns null) */
+  Path finish() throws IOException {
+    mainOut.close();
+    if (file == null) {
+      mainBuffer.writeTo(out);
+    } else {
+      out.flush();
+      // straight from one file to the other, without going through the heap
+      try (FileChannel main = FileChannel.open(mainPath)) {
+        for (long position = 0, size = main.size(); position < size; ) {
+          position += main.transferTo(position, size - position, file);
+        }
+      }
+      Files.delete(mainPath);
+    }
+    for (String declaration : declarations) {
+      out.print(declaration);
+      out.print('\n');
+    }
+    for (Global global : globals) {
+      global.declare(out);
+    }
+    out.close();
+    if (out.checkError() || mainOut.checkError()) {
+      throw new IOException("Failed to write " + (path == null ? "to " + tools : path));
+    }
+    return path;
+  }
+
+  /* after an error, when there's no point in finishing */
+  void discard() throws IOException {
+    if (tools != null) tools.destroy();
+    if (out == null) return;
+    mainOut.close();
+    out.close();
+    if (file == null) return;
+    Files.delete(mainPath);
+    Files.delete(path);
+  }
+
+  private PrintWriter output(Function function) {
+    return function == main ? mainOut : out;
+  }
+
+  /* (a, b, ...) */
+  private static void list(PrintWriter out, List<Value> values) {
+    out.print('(');
+    for (int i = 0; i < values.size(); i++) {
+      if (i > 0) out.print(", ");
+      values.get(i).print(out);
+    }
+    out.print(')');
+  }
+
+  /* anything that can be an operand: a register, a constant or a global */
+  static class Value {
+    final String type, name;
+
+    Value(String type, String name) {
+      this.type = type;
+      this.name = name;
+    }
+
+    void print(PrintWriter out) {
+      out.print(type);
+      out.print(' ');
+      out.print(name);
+    }
+  }
+
+  /* `type` is a pointer to `contents` */
+  static class Global extends Value {
+    final String linkage, contents, initializer;
+
+    Global(String name, String linkage, String contents, String initializer) {
+      super(contents + '*', name);
+      this.linkage = linkage;
+      this.contents = contents;
+      this.initializer = initializer;
+    }
+
+    void declare(PrintWriter out) {
+      out.print(name);
+      out.print(" = ");
+      out.print(linkage);
+      out.print(' ');
+      out.print(contents);
+      out.print(' ');
+      out.print(initializer);
+      out.print('\n');
+    }
+  }
+
+  /* when printing, only the blocks that haven't been printed yet are kept */
+  class Function {
+    final String name, returnType;
+    final List<Value> parameters;
+    final List<Block> blocks = new ArrayList<>();
+    private boolean started = false;
+
+    private Function(String name, String returnType, List<Value> parameters) {
+      this.name = name;
+      this.returnType = returnType;
+      this.parameters = parameters;
+    }
+
+    /* with `end`, everything; otherwise all but the last block, which might still grow */
+    private void print(PrintWriter out, boolean end) {
+      if (!started) {
+        out.print("\ndefine ");
+        out.print(returnType);
+        out.print(' ');
+        out.print(name);
+        list(out, parameters);
+        out.print(" {\n");
+        started = true;
+      }
+      int finished = end ? blocks.size() : blocks.size() - 1;
+      for (Block block : blocks.subList(0, finished)) {
+        size += block.print(out);
+      }
+      blocks.subList(0, finished).clear();
+      if (end) out.print("}\n");
+    }
+  }
+
+  /* created before it's placed in a function, so it can be jumped to first */
+  static class Block {
+    final String name;
+    final List<Instruction> instructions = new ArrayList<>();
+    private boolean terminated = false;
+
+    Block(String name) {
+      this.name = name;
+    }
+
+    void add(Instruction instruction) {
+      instructions.add(instruction);
+      terminated = instruction instanceof Terminator;
+    }
+
+    boolean terminated() {
+      return terminated;
+    }
+
+    /* returns the number of instructions */
+    private int print(PrintWriter out) {
+      out.print(name);
+      out.print(":\n");
+      for (Instruction instruction : instructions) {
+        if (instruction.result != null) {
+          out.print(instruction.result.name);
+          out.print(" = ");
+        }
+        instruction.print(out);
+        out.print('\n');
+      }
+      return instructions.size();
+    }
+
+    void label(PrintWriter out) {
+      out.print("label %");
+      out.print(name);
+    }
+  }
+
+  /* `result` is null if the instruction doesn't produce a value */
+  abstract static class Instruction {
+    final Value result;
+
+    Instruction(Value result) {
+      this.result = result;
+    }
+
+    /* everything after `result = ` */
+    abstract void print(PrintWriter out);
+  }
+
+  /* arithmetic and comparisons: `operator` is e.g. "add" or "icmp slt" */
+  static class Binary extends Instruction {
+    final String operator;
+    final Value left, right;
+
+    Binary(Value result, String operator, Value left, Value right) {
+      super(result);
+      this.operator = operator;
+      this.left = left;
+      this.right = right;
+    }
+
+    void print(PrintWriter out) {
+      out.print(operator);
+      out.print(' ');
+      left.print(out);
+      out.print(", ");
+      out.print(right.name);
+    }
+  }
+
+  /* `operator` is e.g. "sitofp" */
+  static class Cast extends Instruction {
+    final String operator;
+    final Value value;
+
+    Cast(Value result, String operator, Value value) {
+      super(result);
+      this.operator = operator;
+      this.value = value;
+    }
+
+    void print(PrintWriter out) {
+      out.print(operator);
+      out.print(' ');
+      value.print(out);
+      out.print(" to ");
+      out.print(result.type);
+    }
+  }
+
+  static class Alloca extends Instruction {
+    Alloca(Value result) {
+      super(result);
+    }
+
+    void print(PrintWriter out) {
+      out.print("alloca ");
+      // the type of the result is a pointer
+      out.write(result.type, 0, result.type.length() - 1);
+    }
+  }
+
+  static class Load extends Instruction {
+    final Value pointer;
+
+    Load(Value result, Value pointer) {
+      super(result);
+      this.pointer = pointer;
+    }
+
+    void print(PrintWriter out) {
+      out.print("load ");
+      out.print(result.type);
+      out.print(", ");
+      pointer.print(out);
+    }
+  }
+
+  static class Store extends Instruction {
+    final Value value, pointer;
+
+    Store(Value value, Value pointer) {
+      super(null);
+      this.value = value;
+      this.pointer = pointer;
+    }
+
+    void print(PrintWriter out) {
+      out.print("store ");
+      value.print(out);
+      out.print(", ");
+      pointer.print(out);
+    }
+  }
+
+  /* a pointer to the first element of an array */
+  static class ElementPointer extends Instruction {
+    final Global array;
+
+    ElementPointer(Value result, Global array) {
+      super(result);
+      this.array = array;
+    }
+
+    void print(PrintWriter out) {
+      out.print("getelementptr ");
+      out.print(array.contents);
+      out.print(", ");
+      array.print(out);
+      out.print(", i32 0, i64 0");
+    }
+  }
+
+  static class Select extends Instruction {
+    final Value condition, ifTrue, ifFalse;
+
+    Select(Value result, Value condition, Value ifTrue, Value ifFalse) {
+      super(result);
+      this.condition = condition;
+      this.ifTrue = ifTrue;
+      this.ifFalse = ifFalse;
+    }
+
+    void print(PrintWriter out) {
+      out.print("select ");
+      condition.print(out);
+      out.print(", ");
+      ifTrue.print(out);
+      out.print(", ");
+      ifFalse.print(out);
+    }
+  }
+
+  /* `signature` is only needed for varargs functions, e.g. "(i8*, ...)" */
+  static class Call extends Instruction {
+    final String returnType, signature, callee;
+    final List<Value> arguments;
+
+    Call(Value result, String returnType, String signature, String callee, List<Value> arguments) {
+      super(result);
+      this.returnType = returnType;
+      this.signature = signature;
+      this.callee = callee;
+      this.arguments = arguments;
+    }
+
+    void print(PrintWriter out) {
+      out.print("call ");
+      out.print(returnType);
+      out.print(' ');
+      if (signature != null) {
+        out.print(signature);
+        out.print(' ');
+      }
+      out.print(callee);
+      list(out, arguments);
+    }
+  }
+
+  /* incoming values can be added after it's emitted, e.g. for the back edge of a loop */
+  static class Phi extends Instruction {
+    final List<Value> values = new ArrayList<>();
+    final List<Block> blocks = new ArrayList<>();
+
+    Phi(Value result) {
+      super(result);
+    }
+
+    void add(Value value, Block block) {
+      values.add(value);
+      blocks.add(block);
+    }
+
+    void print(PrintWriter out) {
+      out.print("phi ");
+      out.print(result.type);
+      for (int i = 0; i < values.size(); i++) {
+        out.print(i > 0 ? ", [ " : " [ ");
+        out.print(values.get(i).name);
+        out.print(", %");
+        out.print(blocks.get(i).name);
+        out.print(" ]");
+      }
+    }
+  }
+
+  /* the last instruction of a block */
+  abstract static class Terminator extends Instruction {
+    Terminator() {
+      super(null);
+    }
+  }
+
+  static class Branch extends Terminator {
+    final Block target;
+
+    Branch(Block target) {
+      this.target = target;
+    }
+
+    void print(PrintWriter out) {
+      out.print("br ");
+      target.label(out);
+    }
+  }
+
+  static class CondBranch extends Terminator {
+    final Value condition;
+    final Block ifTrue, ifFalse;
+
+    CondBranch(Value condition, Block ifTrue, Block ifFalse) {
+      this.condition = condition;
+      this.ifTrue = ifTrue;
+      this.ifFalse = ifFalse;
+    }
+
+    void print(PrintWriter out) {
+      out.print("br ");
+      condition.print(out);
+      out.print(", ");
+      ifTrue.label(out);
+      out.print(", ");
+      ifFalse.label(out);
+    }
+  }
+
+  /* `value` is null for void functions */
+  static class Return extends Terminator {
+    final Value value;
+
+    Return(Value value) {
+      this.value = value;
+    }
+
+    void print(PrintWriter out) {
+      if (value == null) {
+        out.print("ret void");
+      } else {
+        out.print("ret ");
+        value.print(out);
+      }
+    }
+  }
+
+  static class Unreachable extends Terminator {
+    void print(PrintWriter out) {
+      out.print("unreachable");
+    }
+  }
+}
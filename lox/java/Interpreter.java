@@ -1,37 +1,55 @@
 package lox.java;
 
 import java.io.IOException;
+import java.nio.file.Path;
 
 class Interpreter extends Pass<String, Void> {
   private static final String LLVM_DOWNLOAD_PAGE = "http://releases.llvm.org/download.html#7.0.0";
   private static final boolean onWindows = System.getProperty("os.name").toLowerCase().contains("windows");
 
-  Interpreter(String input) {
-    super(input);
+  Interpreter(CompilationContext context, String input) {
+    super(context, input);
   }
 
   Void runPass() {
-    ProcessBuilder lli = makeCommand("lli", "-color", input);
+    ProcessBuilder lli = makeCommand(context, "lli", "-color", input);
 
     try {
-      int ret = lli.start().waitFor();
-      if (ret != 0) System.exit(ret);
+      // pass on the exit status of the program
+      context.status = run(context, lli);
     } catch(IOException e) {
-      System.err.println("Could not find LLVM interpreter. "
+      context.options.err.println("Could not find LLVM interpreter. "
           + "You may need to install it from " + LLVM_DOWNLOAD_PAGE + " or a package manager");
       if (onWindows)
         // TODO: document
-        System.err.println("LLVM needs to be built from source on Windows; "
+        context.options.err.println("LLVM needs to be built from source on Windows; "
           + "the pre-built binary does not include llc or lli.");
     } catch (InterruptedException e) {  // Ctrl-C
-      System.exit(130);
+      context.interrupted("lli");
     }
 
     return null;
   }
 
-  static ProcessBuilder makeCommand(String ... args) {
+  /* start an external tool and wait for it, recording how long it took */
+  static int run(CompilationContext context, ProcessBuilder command) throws IOException, InterruptedException {
+    // a Batch only lets so many tools run at once
+    if (context.batch != null) context.batch.tools.acquire();
+    try {
+      long start = System.nanoTime();
+      int status = Events.run(context.source, command);
+      context.statistics.count(command.command().get(0) + "Nanos", System.nanoTime() - start);
+      return status;
+    } finally {
+      if (context.batch != null) context.batch.tools.release();
+    }
+  }
+
+  static ProcessBuilder makeCommand(CompilationContext context, String ... args) {
+      Path directory = context.options.directory;
       return new ProcessBuilder(args)
+        // so a.out ends up next to the client of Server
+        .directory(directory == null ? null : directory.toFile())
         .redirectOutput(ProcessBuilder.Redirect.INHERIT)
         .redirectError(ProcessBuilder.Redirect.INHERIT);
   }
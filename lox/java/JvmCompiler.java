@@ -0,0 +1,534 @@
+package lox.java;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static lox.java.ClassWriter.*;
+import static lox.java.LoxType.*;
+
+/*
+ * Compiles the annotated AST to a single JVM class, so HotSpot can JIT it.
+ *
+ * Every Lox function becomes a static method named after its mangled name,
+ * and the top level becomes `static void main()`.
+ * Types map straight onto JVM primitives: int, double, boolean and String.
+ * Variables declared at the top level (in any block) become static fields,
+ * everything else is a JVM local. As in the VM, functions can't capture
+ * the locals of an enclosing function.
+ *
+ * In a REPL Session each line is a class of its own, named LoxProgram1, LoxProgram2...,
+ * and uses the fields and methods of the earlier lines where they are.
+ */
+class JvmCompiler extends Pass<List<Stmt>, byte[]>
+  implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+  static final String CLASS_NAME = "LoxProgram";
+  private static final String RUNTIME = "lox/java/LoxRuntime";
+  // marks a declaration as a static field rather than a local
+  private static final int FIELD = -1;
+
+  private final Session session = context.session;
+  private final String className = session == null ? CLASS_NAME : session.nextClassName();
+  private final ClassWriter writer = new ClassWriter(className, context.source.name);
+  // indexed by mangled id: the function a declaration belongs to, and its local or FIELD
+  private final int[] owners, slots;
+  // indexed by the mangled id of a function
+  private final String[] descriptors;
+  private final LoxType[][] parameterTypes;
+  // indexed by mangled id: the class of a declaration from an earlier line of the session
+  private final String[] classes;
+  private int functions = 0, currentFunction = 0, nextLocal = 0;
+  private ClassWriter.Code code;
+  // the start and end of each enclosing loop
+  private final List<Label> continues = new ArrayList<>(), breaks = new ArrayList<>();
+
+  JvmCompiler(CompilationContext context, List<Stmt> input) {
+    super(context, input);
+    int size = context.symbols.size();
+    owners = new int[size];
+    slots = new int[size];
+    descriptors = new String[size];
+    parameterTypes = new LoxType[size][];
+    classes = new String[size];
+    if (session != null) {
+      for (Expr.Symbol symbol : session.declarations()) {
+        int id = symbol.id;
+        classes[id] = session.className(id);
+        slots[id] = FIELD;
+        parameterTypes[id] = session.parameters(id);
+        if (parameterTypes[id] != null) descriptors[id] = descriptor(parameterTypes[id], symbol.type);
+      }
+    }
+  }
+
+  byte[] runPass() {
+    code = writer.method(ACC_PUBLIC | ACC_STATIC, "main", "()V");
+    for (Stmt stmt : input) {
+      stmt.accept(this);
+    }
+    code.emit(RETURN, 0);
+    end(code, "the top level");
+    if (session != null && !context.hadError()) {
+      // what the next lines can see
+      for (Stmt stmt : input) {
+        if (stmt instanceof Stmt.Var) {
+          session.declare(((Stmt.Var) stmt).identifier, className, null);
+        } else if (stmt instanceof Stmt.Function) {
+          Expr.Symbol identifier = ((Stmt.Function) stmt).identifier;
+          session.declare(identifier, className, parameterTypes[identifier.id]);
+        }
+      }
+    }
+    return writer.toByteArray();
+  }
+
+  public Void visitStmt(Stmt.Expression stmt) {
+    code.line(stmt.token.line);
+    stmt.expression.accept(this);
+    pop(stmt.expression.type);
+    return null;
+  }
+
+  public Void visitStmt(Stmt.Print stmt) {
+    code.line(stmt.token.line);
+    LoxType type = stmt.expression.type;
+    stmt.expression.accept(this);
+    if (type == VOID) {
+      code.emitShort(INVOKESTATIC, writer.methodRef(RUNTIME, "printNull", "()V"), 0);
+    } else {
+      code.emitShort(INVOKESTATIC,
+          writer.methodRef(RUNTIME, "print", '(' + descriptor(type) + ")V"), -size(type));
+    }
+    return null;
+  }
+
+  public Void visitStmt(Stmt.Var var) {
+    code.line(var.token.line);
+    declare(var.identifier);
+    if (var.equals == null) {
+      zero(var.identifier.type);
+      store(var.identifier);
+    } else {
+      var.equals.accept(this);
+      pop(var.equals.type);
+    }
+    return null;
+  }
+
+  public Void visitStmt(Stmt.Block block) {
+    for (Stmt stmt : block.statements) {
+      stmt.accept(this);
+    }
+    return null;
+  }
+
+  public Void visitStmt(Stmt.If stmt) {
+    code.line(stmt.token.line);
+    Label otherwise = new Label(), end = new Label();
+    stmt.condition.accept(this);
+    code.emitJump(IFEQ, otherwise, -1);
+    stmt.then.accept(this);
+    if (stmt.otherwise == null) {
+      code.place(otherwise);
+    } else {
+      code.emitJump(GOTO, end, 0);
+      code.place(otherwise);
+      stmt.otherwise.accept(this);
+      code.place(end);
+    }
+    return null;
+  }
+
+  public Void visitStmt(Stmt.While stmt) {
+    code.line(stmt.token.line);
+    Label start = new Label(), end = new Label();
+    code.place(start);
+    stmt.condition.accept(this);
+    code.emitJump(IFEQ, end, -1);
+    continues.add(start);
+    breaks.add(end);
+    stmt.body.accept(this);
+    code.emitJump(GOTO, start, 0);
+    continues.remove(continues.size() - 1);
+    breaks.remove(breaks.size() - 1);
+    code.place(end);
+    return null;
+  }
+
+  public Void visitStmt(Stmt.LoopControl keyword) {
+    // Annotate already checked that we're inside a loop
+    List<Label> targets = keyword.token.type == Token.Type.BREAK ? breaks : continues;
+    code.emitJump(GOTO, targets.get(targets.size() - 1), 0);
+    return null;
+  }
+
+  public Void visitStmt(Stmt.Function func) {
+    int id = func.identifier.id;
+    LoxType[] parameters = new LoxType[func.arguments.size()];
+    for (int i = 0; i < parameters.length; i++) {
+      parameters[i] = func.arguments.get(i).type;
+    }
+    descriptors[id] = descriptor(parameters, func.identifier.type);
+    parameterTypes[id] = parameters;
+    owners[id] = currentFunction;
+
+    ClassWriter.Code enclosing = code;
+    int enclosingFunction = currentFunction, enclosingLocals = nextLocal;
+    code = writer.method(ACC_PUBLIC | ACC_STATIC, name(func.identifier), descriptors[id]);
+    currentFunction = ++functions;
+    nextLocal = 0;
+    for (Expr.Symbol argument : func.arguments) {
+      declare(argument);
+    }
+    for (Stmt stmt : func.body.statements) {
+      stmt.accept(this);
+    }
+    // Annotate only checks that there is a return, not that every path reaches it
+    zero(func.identifier.type);
+    code.emit(returnOpcode(func.identifier.type), -size(func.identifier.type));
+    end(code, "function '" + func.identifier.token.lexeme + "'");
+
+    code = enclosing;
+    currentFunction = enclosingFunction;
+    nextLocal = enclosingLocals;
+    return null;
+  }
+
+  public Void visitStmt(Stmt.Return stmt) {
+    code.line(stmt.token.line);
+    LoxType type = stmt.value == null ? VOID : stmt.value.type;
+    if (stmt.value != null) stmt.value.accept(this);
+    code.emit(returnOpcode(type), -size(type));
+    return null;
+  }
+
+  public Void visitExpr(Expr.Literal expr) {
+    if (expr.type == BOOL) pushInt((boolean)expr.value ? 1 : 0);
+    else if (expr.type == INT) pushInt((int)expr.value);
+    else if (expr.type == DOUBLE) pushDouble((double)expr.value);
+    else if (expr.type == STRING) pushConstant(writer.string((String)expr.value));
+    return null;
+  }
+
+  public Void visitExpr(Expr.Grouping expr) {
+    return expr.expression.accept(this);
+  }
+
+  public Void visitExpr(Expr.Symbol symbol) {
+    if (isField(symbol)) {
+      code.emitShort(GETSTATIC, field(symbol), size(symbol.type));
+    } else {
+      int opcode = symbol.type == DOUBLE ? DLOAD : symbol.type == STRING ? ALOAD : ILOAD;
+      code.emitLocal(opcode, slots[symbol.id], size(symbol.type));
+    }
+    return null;
+  }
+
+  public Void visitExpr(Expr.Assign expr) {
+    convert(expr.rvalue, expr.lvalue.type);
+    code.emit(size(expr.lvalue.type) == 2 ? DUP2 : DUP, size(expr.lvalue.type));
+    store(expr.lvalue);
+    // Annotate types the assignment as the promoted type of both sides
+    convert(expr.lvalue.type, expr.type);
+    return null;
+  }
+
+  public Void visitExpr(Expr.Unary expr) {
+    expr.right.accept(this);
+    if (expr.token.type == Token.Type.BANG) {
+      pushInt(1);
+      code.emit(IXOR, -1);
+    } else if (expr.type == DOUBLE) {
+      code.emit(DNEG, 0);
+    } else {
+      code.emit(INEG, 0);
+    }
+    return null;
+  }
+
+  public Void visitExpr(Expr.Logical expr) {
+    boolean or = expr.token.type == Token.Type.OR;
+    Label shortCircuit = new Label(), end = new Label();
+    expr.left.accept(this);
+    code.emitJump(or ? IFNE : IFEQ, shortCircuit, -1);
+    expr.right.accept(this);
+    code.emitJump(GOTO, end, 0);
+    code.stack(code.stack() - 1);
+    code.place(shortCircuit);
+    pushInt(or ? 1 : 0);
+    code.place(end);
+    return null;
+  }
+
+  public Void visitExpr(Expr.Binary expr) {
+    Token.Type operator = expr.token.type;
+    if (operator == Token.Type.COMMA) {
+      expr.left.accept(this);
+      pop(expr.left.type);
+      return expr.right.accept(this);
+    }
+
+    LoxType operands = operands(expr.left.type, expr.right.type);
+    convert(expr.left, operands);
+    convert(expr.right, operands);
+
+    if (operands == INT || operands == BOOL) {
+      int opcode = intOperator(operator);
+      if (opcode != -1) {
+        if (opcode == IDIV || opcode == IREM) checkDivisor(expr.token);
+        code.emit(opcode, -1);
+        // arithmetic on booleans wraps around like any other 1-bit integer
+        if (operands == BOOL) {
+          pushInt(1);
+          code.emit(IAND, -1);
+        }
+        return null;
+      }
+      opcode = intComparison(operator);
+      if (opcode != -1) return bool(opcode, -2);
+    } else if (operands == DOUBLE) {
+      int opcode = doubleOperator(operator);
+      if (opcode != -1) {
+        code.emit(opcode, -2);
+        return null;
+      }
+      if (operator == Token.Type.BANG_EQUAL) {
+        code.emitShort(INVOKESTATIC, writer.methodRef(RUNTIME, "notEqual", "(DD)Z"), -3);
+        return null;
+      }
+      opcode = intComparison(operator);
+      if (opcode != -1) {
+        // NaN compares false with everything, so pick the instruction that makes that happen
+        boolean greater = operator == Token.Type.GREATER || operator == Token.Type.GREATER_EQUAL;
+        code.emit(greater ? DCMPL : DCMPG, -3);
+        // if_icmpXX -> ifXX
+        return bool(opcode - (IF_ICMPEQ - IFEQ), -1);
+      }
+    } else if (operands == STRING) {
+      if (operator == Token.Type.PLUS) {
+        code.emitShort(INVOKEVIRTUAL,
+            writer.methodRef("java/lang/String", "concat", "(Ljava/lang/String;)Ljava/lang/String;"), -1);
+        return null;
+      }
+      if (operator == Token.Type.EQUAL_EQUAL || operator == Token.Type.BANG_EQUAL) {
+        code.emitShort(INVOKEVIRTUAL,
+            writer.methodRef("java/lang/String", "equals", "(Ljava/lang/Object;)Z"), -1);
+        if (operator == Token.Type.BANG_EQUAL) {
+          pushInt(1);
+          code.emit(IXOR, -1);
+        }
+        return null;
+      }
+    } else if (operator == Token.Type.EQUAL_EQUAL || operator == Token.Type.BANG_EQUAL) {
+      // values of different types are never equal
+      pop(expr.right.type);
+      pop(expr.left.type);
+      pushInt(operator == Token.Type.EQUAL_EQUAL ? 0 : 1);
+      return null;
+    }
+
+    error(expr.token, "Illegal operator '" + expr.token.lexeme + "' for type " + operands);
+    return null;
+  }
+
+  public Void visitExpr(Expr.Call call) {
+    int id = call.callee.id, arguments = 0;
+    LoxType[] parameters = parameterTypes[id];
+    for (int i = 0; i < call.arguments.size(); i++) {
+      // Annotate doesn't check argument types, so convert as if assigning
+      convert(call.arguments.get(i), parameters[i]);
+      arguments += size(parameters[i]);
+    }
+    code.emitShort(INVOKESTATIC, writer.methodRef(owner(call.callee), name(call.callee), descriptors[id]),
+        size(call.callee.type) - arguments);
+    return null;
+  }
+
+  /* push 1 if the jump is taken, 0 otherwise */
+  private Void bool(int jump, int stackEffect) {
+    Label taken = new Label(), end = new Label();
+    code.emitJump(jump, taken, stackEffect);
+    pushInt(0);
+    code.emitJump(GOTO, end, 0);
+    code.stack(code.stack() - 1);
+    code.place(taken);
+    pushInt(1);
+    code.place(end);
+    return null;
+  }
+
+  /* so the error points at the operator, like the interpreters, rather than at an ArithmeticException */
+  private void checkDivisor(Token operator) {
+    Label nonzero = new Label();
+    code.emit(DUP, 1);
+    code.emitJump(IFNE, nonzero, -1);
+    pushInt(operator.line);
+    pushInt(operator.column);
+    code.emitShort(INVOKESTATIC, writer.methodRef(RUNTIME, "divisionByZero", "(II)V"), -2);
+    code.place(nonzero);
+  }
+
+  private void declare(Expr.Symbol symbol) {
+    owners[symbol.id] = currentFunction;
+    if (currentFunction == 0) {
+      slots[symbol.id] = FIELD;
+      // public for the later lines of a session
+      writer.field(ACC_PUBLIC | ACC_STATIC, name(symbol), descriptor(symbol.type));
+    } else {
+      slots[symbol.id] = nextLocal;
+      nextLocal += size(symbol.type);
+      code.locals(nextLocal);
+    }
+  }
+
+  private boolean isField(Expr.Symbol symbol) {
+    int owner = owners[symbol.id];
+    if (owner != currentFunction && owner != 0) {
+      error(symbol.token, "INTERNAL error: closures not implemented; '"
+          + symbol.token.lexeme + "' belongs to an enclosing function");
+    }
+    return slots[symbol.id] == FIELD;
+  }
+
+  private int field(Expr.Symbol symbol) {
+    return writer.fieldRef(owner(symbol), name(symbol), descriptor(symbol.type));
+  }
+
+  /* the class a field or method is in */
+  private String owner(Expr.Symbol symbol) {
+    String owner = classes[symbol.id];
+    return owner == null ? className : owner;
+  }
+
+  private void store(Expr.Symbol symbol) {
+    if (isField(symbol)) {
+      code.emitShort(PUTSTATIC, field(symbol), -size(symbol.type));
+    } else {
+      int opcode = symbol.type == DOUBLE ? DSTORE : symbol.type == STRING ? ASTORE : ISTORE;
+      code.emitLocal(opcode, slots[symbol.id], -size(symbol.type));
+    }
+  }
+
+  /* emit `expr`, then convert its value to `type` */
+  private void convert(Expr expr, LoxType type) {
+    expr.accept(this);
+    convert(expr.type, type);
+  }
+
+  private void convert(LoxType from, LoxType to) {
+    if (to == DOUBLE && (from == INT || from == BOOL)) code.emit(I2D, 1);
+    else if ((to == INT || to == BOOL) && from == DOUBLE) code.emit(D2I, -1);
+  }
+
+  private void zero(LoxType type) {
+    if (type == BOOL || type == INT) pushInt(0);
+    else if (type == DOUBLE) pushDouble(0);
+    else if (type == STRING) pushConstant(writer.string(""));
+  }
+
+  private void pop(LoxType type) {
+    if (size(type) == 2) code.emit(POP2, -2);
+    else if (size(type) == 1) code.emit(POP, -1);
+  }
+
+  private void pushInt(int value) {
+    if (value >= -1 && value <= 5) code.emit(ICONST_0 + value, 1);
+    else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) code.emitByte(BIPUSH, value, 1);
+    else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) code.emitShort(SIPUSH, value, 1);
+    else pushConstant(writer.integer(value));
+  }
+
+  private void pushConstant(int index) {
+    if (index < 256) code.emitByte(LDC, index, 1);
+    else code.emitShort(LDC_W, index, 1);
+  }
+
+  private void pushDouble(double value) {
+    if (Double.doubleToRawLongBits(value) == 0) code.emit(DCONST_0, 2);
+    else if (value == 1) code.emit(DCONST_0 + 1, 2);
+    else code.emitShort(LDC2_W, writer.real(value), 2);
+  }
+
+  private void end(ClassWriter.Code method, String name) {
+    if (!method.end()) error(-1, -1, "Code for " + name + " is too large for the jvm backend");
+  }
+
+  private String name(Expr.Symbol symbol) {
+    return context.symbols.name(symbol.id);
+  }
+
+  private static int intOperator(Token.Type operator) {
+    switch (operator) {
+      case PLUS: return IADD;
+      case MINUS: return ISUB;
+      case STAR: return IMUL;
+      case SLASH: return IDIV;
+      case PERCENT: return IREM;
+      case AMPERSAND: return IAND;
+      case PIPE: return IOR;
+      case CARET: return IXOR;
+      default: return -1;
+    }
+  }
+
+  private static int doubleOperator(Token.Type operator) {
+    switch (operator) {
+      case PLUS: return DADD;
+      case MINUS: return DSUB;
+      case STAR: return DMUL;
+      case SLASH: return DDIV;
+      case PERCENT: return DREM;
+      default: return -1;
+    }
+  }
+
+  private static int intComparison(Token.Type operator) {
+    switch (operator) {
+      case EQUAL_EQUAL: return IF_ICMPEQ;
+      case BANG_EQUAL: return IF_ICMPNE;
+      case LESS: return IF_ICMPLT;
+      case LESS_EQUAL: return IF_ICMPLE;
+      case GREATER: return IF_ICMPGT;
+      case GREATER_EQUAL: return IF_ICMPGE;
+      default: return -1;
+    }
+  }
+
+  private static int returnOpcode(LoxType type) {
+    switch (type) {
+      case VOID: return RETURN;
+      case DOUBLE: return DRETURN;
+      case STRING: return ARETURN;
+      default: return IRETURN;
+    }
+  }
+
+  private static String descriptor(LoxType type) {
+    switch (type) {
+      case BOOL: return "Z";
+      case INT: return "I";
+      case DOUBLE: return "D";
+      case STRING: return "Ljava/lang/String;";
+      default: return "V";
+    }
+  }
+
+  private static String descriptor(LoxType[] parameters, LoxType returnType) {
+    StringBuilder descriptor = new StringBuilder("(");
+    for (LoxType parameter : parameters) {
+      descriptor.append(descriptor(parameter));
+    }
+    return descriptor.append(')').append(descriptor(returnType)).toString();
+  }
+
+  /* the number of JVM stack slots a value takes */
+  private static int size(LoxType type) {
+    return type == VOID ? 0 : type == DOUBLE ? 2 : 1;
+  }
+
+  /* the type both operands are promoted to, or null if they can't be */
+  private static LoxType operands(LoxType left, LoxType right) {
+    if (left == right) return left;
+    if (left == STRING || left == VOID || right == STRING || right == VOID) return null;
+    return left.compareTo(right) > 0 ? left : right;
+  }
+}
@@ -0,0 +1,49 @@
+package lox.java;
+
+import java.lang.reflect.InvocationTargetException;
+
+/*
+ * Loads the class JvmCompiler generated into this JVM and runs its main().
+ * Every run gets a fresh class loader, so the class can be unloaded afterwards,
+ * except in a REPL Session, where all the lines share one.
+ */
+class JvmRunner extends Pass<byte[], Void> {
+  JvmRunner(CompilationContext context, byte[] input) {
+    super(context, input);
+  }
+
+  Void runPass() {
+    try {
+      Session session = context.session;
+      Class<?> program = (session == null ? new Loader() : session.loader()).define(input);
+      program.getMethod("main").invoke(null);
+    } catch (InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof LoxRuntime.DivisionByZero) {
+        LoxRuntime.DivisionByZero division = (LoxRuntime.DivisionByZero)cause;
+        error(division.line, division.column, "Division by zero");
+      } else if (cause instanceof StackOverflowError) {
+        error(-1, -1, "Stack overflow");
+      } else {
+        throw new IllegalStateException("INTERNAL error: generated code threw an exception", cause);
+      }
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("INTERNAL error: could not load generated code", e);
+    } finally {
+      LoxRuntime.flush();
+    }
+    return null;
+  }
+
+  static class Loader extends ClassLoader {
+    Loader() {
+      // so the generated code can see LoxRuntime
+      super(JvmRunner.class.getClassLoader());
+    }
+
+    Class<?> define(byte[] bytes) {
+      // the name is in the class file
+      return defineClass(null, bytes, 0, bytes.length);
+    }
+  }
+}
@@ -1,15 +1,13 @@
 package lox.java;
 
-import java.util.List;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.function.Supplier;
 
 import static java.util.Map.entry;
-import static lox.java.Lox.error;
 import static lox.java.Token.Type.*;
 
-class Lexer extends Pass<String, List<Token>> {
+class Lexer extends Pass<Source, TokenStream> {
   private static final Map<Character, Character> escape_characters = Map.ofEntries(
     entry('\'', '\''),
     entry('"', '"'),
@@ -45,75 +43,90 @@ class Lexer extends Pass<String, List<Token>> {
     entry("void", VOID)
   );
 
-  private final List<Token> tokens = new ArrayList<>();
+  private static final String[] keywordNames = keywords.keySet().stream().sorted().toArray(String[]::new);
+
+  private final TokenStream tokens;
+  private final Symbols symbols = context.symbols;
+  // keywords are interned like any other name; this is indexed by symbol id
+  private final Token.Type[] keywordTypes;
   // current should ONLY be modified by advance() (since it updates column and line)
   private int start = 0, current = 0, line = 1, column = 0;
   private int errorStart = -1;
 
-  public Lexer(String input) {
-    super(input);
+  public Lexer(CompilationContext context, Source input) {
+    super(context, input);
+    tokens = new TokenStream(input);
+    Token.Type[] types = new Token.Type[keywordNames.length];
+    for (String keyword : keywordNames) {
+      int id = symbols.intern(keyword);
+      if (id >= types.length) types = Arrays.copyOf(types, id + 1);
+      types[id] = keywords.get(keyword);
+    }
+    keywordTypes = types;
   }
 
-  public List<Token> runPass() {
+  public TokenStream runPass() {
     while (!atEnd()) {
-      Token t = scanToken();
-      if (t != null) tokens.add(t);
+      scanToken();
     }
+    context.statistics.count("tokens", tokens.size());
     return tokens;
   }
 
   /*
-   * Returns the next token.
-   * If the next token is illegal, or if there is no next token, return null.
+   * Appends the next token to the stream.
+   * If the next token is illegal, or if there is no next token, appends nothing.
    */
-  private Token scanToken() {
+  private void scanToken() {
     char c = advance();
     if (isDigit(c) || (c == '.' && isDigit(peek()))) {
-      return makeToken(NUMBER, number());
+      makeNumber(number());
+      return;
     }
     switch (c) {
-      case '(': return makeToken(LEFT_PAREN);
-      case ')': return makeToken(RIGHT_PAREN);
-      case '{': return makeToken(LEFT_BRACE);
-      case '}': return makeToken(RIGHT_BRACE);
-      case ',': return makeToken(COMMA);
-      case ';': return makeToken(SEMICOLON);
-
-      case '.': return makeToken(match('=') ? DOT_EQUAL : DOT);
-      case '^': return makeToken(match('=') ? CARET_EQUAL : CARET);
-      case '%': return makeToken(match('%') ? PERCENT_EQUAL : PERCENT);
-      case '!': return makeToken(match('=') ? BANG_EQUAL : BANG);
-      case '=': return makeToken(match('=') ? EQUAL_EQUAL : EQUAL);
-      case '<': return makeToken(match('=') ? LESS_EQUAL : LESS);
-      case '>': return makeToken(match('=') ? GREATER_EQUAL : GREATER);
-      case '*': return makeToken(match('=') ? STAR_EQUAL : STAR);
+      case '(': makeToken(LEFT_PAREN); break;
+      case ')': makeToken(RIGHT_PAREN); break;
+      case '{': makeToken(LEFT_BRACE); break;
+      case '}': makeToken(RIGHT_BRACE); break;
+      case ',': makeToken(COMMA); break;
+      case ';': makeToken(SEMICOLON); break;
+
+      case '.': makeToken(match('=') ? DOT_EQUAL : DOT); break;
+      case '^': makeToken(match('=') ? CARET_EQUAL : CARET); break;
+      case '%': makeToken(match('%') ? PERCENT_EQUAL : PERCENT); break;
+      case '!': makeToken(match('=') ? BANG_EQUAL : BANG); break;
+      case '=': makeToken(match('=') ? EQUAL_EQUAL : EQUAL); break;
+      case '<': makeToken(match('=') ? LESS_EQUAL : LESS); break;
+      case '>': makeToken(match('=') ? GREATER_EQUAL : GREATER); break;
+      case '*': makeToken(match('=') ? STAR_EQUAL : STAR); break;
       case '/':
         if (match('/')) {
           flushError();
           while(!atEnd() && advance() != '\n');
           if (previous() == '\n') {
             start = current;
-            return atEnd() ? null : scanToken();
+            if (!atEnd()) scanToken();
           }
-          // atEnd
-          return null;
+          return;
         } else if (match('*')) {
           flushError();
           while (!atEnd() && advance() != '*');
           if (previous() == '*' && match('/')) {
             advance();
             start = current;
-            return atEnd() ? null : scanToken();
+            if (!atEnd()) scanToken();
+            return;
           }
         }
-        return makeToken(match('=') ? SLASH_EQUAL : SLASH);
+        makeToken(match('=') ? SLASH_EQUAL : SLASH);
+        break;
 
-      case '+': return makeToken(match('=') ? PLUS_EQUAL :
-                    match('+') ? PLUS_PLUS : PLUS);
-      case '-': return makeToken(match('=') ? MINUS_EQUAL :
-                    match('-') ? MINUS_MINUS : MINUS);
-      case '&': return makeToken(match('=') ? AMPERSAND_EQUAL : AMPERSAND);
-      case '|': return makeToken(match('=') ? PIPE_EQUAL : PIPE);
+      case '+': makeToken(match('=') ? PLUS_EQUAL :
+                    match('+') ? PLUS_PLUS : PLUS); break;
+      case '-': makeToken(match('=') ? MINUS_EQUAL :
+                    match('-') ? MINUS_MINUS : MINUS); break;
+      case '&': makeToken(match('=') ? AMPERSAND_EQUAL : AMPERSAND); break;
+      case '|': makeToken(match('=') ? PIPE_EQUAL : PIPE); break;
 
       // ignore whitespace
       case '\n':
@@ -121,17 +134,19 @@ class Lexer extends Pass<String, List<Token>> {
       case '\r':
       case '\t':
         flushError();
-        if (atEnd()) return null;
+        if (atEnd()) break;
         start = current;
-        return scanToken();
+        scanToken();
+        break;
 
       case '"':
         flushError();
-        return makeToken(STRING, string());
+        makeString(string());
+        break;
 
       default:
-        if (isAlpha(c)) return makeToken(identifier());
-        return handleErrors();
+        if (isAlpha(c)) identifier();
+        else handleErrors();
     }
   }
 
@@ -176,7 +191,7 @@ class Lexer extends Pass<String, List<Token>> {
       advance();  // closing "
       if (multiLine) { // closing """
         if (input.length() <= current + 1) {
-          error(line, column, "Unterminated string: expected '" + end + "', got " + input.substring(current) + "<end of file>");
+          error(line, column, "Unterminated string: expected '" + end + "', got " + input.substring(current, input.length()) + "<end of file>");
         } else {
           advance();
           advance();
@@ -186,7 +201,7 @@ class Lexer extends Pass<String, List<Token>> {
     return result.toString();
   }
 
-  private Number number() {
+  private double number() {
     while (isDigit(peek())) advance();
 
     // only count '.' as part of a number if followed by a digit
@@ -194,19 +209,27 @@ class Lexer extends Pass<String, List<Token>> {
       // consume the dot
       advance();
       while (isDigit(peek())) advance();
-      return Double.parseDouble(input.substring(start, current));
     }
 
-    return Integer.parseInt(input.substring(start, current));
-
+    String lexeme = input.substring(start, current);
+    // numbers that start with '.' are doubles too
+    if (lexeme.indexOf('.') != -1) return Double.parseDouble(lexeme);
+    return Integer.parseInt(lexeme);
   }
 
-  private Token.Type identifier() {
+  private void identifier() {
     char c;
     while ((c = peek()) != 0 && (isAlphaNumeric(c) || c == '\'' || c == '?' || c == '_')) {
       advance();
     }
-    return keywords.getOrDefault(input.substring(start, current), IDENTIFIER);
+    int id = symbols.intern(input, start, current - start);
+    if (id < keywordTypes.length && keywordTypes[id] != null) {
+      makeToken(keywordTypes[id]);
+    } else {
+      flushError();
+      tokens.addIdentifier(start, current - start, line, tokenColumn(), id);
+      start = current;
+    }
   }
 
   private char previous() {
@@ -255,16 +278,26 @@ class Lexer extends Pass<String, List<Token>> {
     return isDigit(c) || isAlpha(c);
   }
 
-  private Token makeToken(Token.Type type) {
-    return makeToken(type, null);
+  private void makeToken(Token.Type type) {
+    flushError();
+    tokens.add(type, start, current - start, line, tokenColumn());
+    start = current;
+  }
+
+  private void makeNumber(double value) {
+    flushError();
+    tokens.addNumber(start, current - start, line, tokenColumn(), value);
+    start = current;
   }
 
-  private Token makeToken(Token.Type type, Object value) {
+  private void makeString(String value) {
     flushError();
-    Token result = new Token(type, input.substring(start, current), line,
-        column - (current - start) + 1, value);
+    tokens.addString(start, current - start, line, tokenColumn(), value);
     start = current;
-    return result;
+  }
+
+  private int tokenColumn() {
+    return column - (current - start) + 1;
   }
 
   private void flushError() {
@@ -276,8 +309,8 @@ class Lexer extends Pass<String, List<Token>> {
   }
 
   /*
-   * Returns the next valid token, knowing that the character `c` is invalid.
-   * If there are no more valid tokens, returns null.
+   * Appends the next valid token, knowing that the character `c` is invalid.
+   * If there are no more valid tokens, appends nothing.
    *
    * Assumes that `c' came from input[current - 1].
    *
@@ -298,20 +331,19 @@ class Lexer extends Pass<String, List<Token>> {
    * LEFT_PAREN ( null
    * LEFT_PAREN ( null
    */
-  private Token handleErrors() {
+  private void handleErrors() {
     if (errorStart == -1) errorStart = start;
     start = current;
 
-    // return null HAS to come before recursive call (stopping condition)
+    // return HAS to come before recursive call (stopping condition)
     if (atEnd()) {
       flushError();
-      return null;
+      return;
     }
 
     // start looking for a valid token at the current index
     // scanToken HAS to come before error (it's how we know how big an illegal token is)
-    Token result = scanToken();
+    scanToken();
     flushError();
-    return result;
   }
 }
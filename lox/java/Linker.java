@@ -3,22 +3,33 @@ package lox.java;
 import java.io.IOException;
 
 import static lox.java.Interpreter.makeCommand;
+import static lox.java.Interpreter.run;
 
-class Linker extends Pass<String, Void> {
-  Linker(String input) {
-    super(input);
+/* returns the executable, relative to Options.directory */
+class Linker extends Pass<String, String> {
+  Linker(CompilationContext context, String input) {
+    super(context, input);
   }
 
   @Override
-  Void runPass() {
-    ProcessBuilder clang = makeCommand("clang", "-Wno-override-module", "-o", "a.out", input);
+  String runPass() {
+    String executable = executable(context);
+    ProcessBuilder clang = makeCommand(context, "clang", "-Wno-override-module", "-o", executable, input);
     try {
-      clang.start().waitFor();
+      // clang already said why; an old executable mustn't look like the result
+      if (run(context, clang) != 0) error(-1, -1, "Failed to link " + input);
     } catch (InterruptedException e) {
-      System.exit(130);
+      context.interrupted("clang");
     } catch (IOException e) {
-      e.printStackTrace();
+      error(-1, -1, "Failed to link " + input + ": " + e.getMessage());
     }
-    return null;
+    return executable;
+  }
+
+  /* a.out, or in a Batch, the source without .lox so the executables don't overwrite each other */
+  static String executable(CompilationContext context) {
+    if (context.batch == null) return "a.out";
+    String name = context.source.name;
+    return name.endsWith(".lox") ? name.substring(0, name.length() - ".lox".length()) : name + ".out";
   }
 }
@@ -1,118 +1,122 @@
 package lox.java;
 
 import java.io.IOException;
-import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.io.PrintStream;
 import java.nio.file.NoSuchFileException;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import org.gnu.readline.Readline;
 import org.gnu.readline.ReadlineLibrary;
 
+/*
+ * The command line. The pipelines are built once and shared;
+ * everything about a single compilation is in its CompilationContext.
+ */
 class Lox {
-  private static int errors = 0;
-  private static String filename, source;
-  // it's times like this that I really wish java had typedefs
-  private static final List<Class<? extends Pass<?, ?>>> interactivePasses = List.of(
-    Lexer.class, Parser.class, Annotate.class, Compiler.class, Writer.class, Interpreter.class
-  );
+  private static final Pipeline<Source, List<Stmt>> check = Pipeline.of(Lexer::new)
+    // type errors are still worth reporting next to undeclared names
+    .then(Parser::new).then(Resolver::new).thenDespiteErrors(Annotate::new).then(Fold::new);
+  // --cache keeps what Writer, Optimize and Linker produce, so an unchanged file skips them
+  private static final Pipeline<Source, String> compile =
+    Cache.cached(Cache.MODULE, check.then(Compiler::new).then(Writer::new));
+  // indexed by Options.BACKENDS
+  private static final Map<String, Pipeline<Source, ?>> backends = Map.of(
+    "eval", check.then(Evaluator::new),
+    "vm", check.then(BytecodeCompiler::new).then(VM::new),
+    "jvm", check.then(JvmCompiler::new).then(JvmRunner::new),
+    "lli", compile.then(Interpreter::new),
+    "native", Cache.cached(Cache.EXECUTABLE,
+      Cache.cached(Cache.OPTIMIZED, compile.then(Optimize::new)).then(Linker::new)));
+  // --pipe: the same tools, started before Compiler so they read the module as it's generated
+  private static final Map<String, Pipeline<Source, Void>> piped = Map.of(
+    "lli", check.then((context, program) -> new Compiler(context, program, ToolPipeline.lli())).then(PipeWriter::new),
+    "native", check.then((context, program) -> new Compiler(context, program, ToolPipeline.link(Linker.executable(context)))).then(PipeWriter::new));
 
   public static void main(String[] args) throws IOException {
-    if (args.length > 1) {
-      System.out.println("Usage: jlox [file]");
+    Options options;
+    try {
+      options = Options.parse(args);
+    } catch (IllegalArgumentException e) {
+      System.out.println(e.getMessage());
+      System.out.println(Options.USAGE);
       System.exit(1);
+      return;
     }
-    if (args.length == 1) {
-      try {
-        filename = args[0];
-        runFile(new String(Files.readAllBytes(Paths.get(args[0]))));
-      } catch (NoSuchFileException e) {
-        System.err.println("File not found: " + args[0]);
-      }
+    if (options.server) {
+      Server.serve(options);
+      return;
+    }
+    if (!options.files.isEmpty()) {
+      exit(runFile(options));
     } else if (System.console() == null) {
-      filename = "<stdin>";
-      runFile(readAllInput());
+      exit(runFile(new CompilationContext(Source.read(System.in, "<stdin>"), options)));
     } else {
-      filename = "<stdin>";
-      runPrompt();
-    }
-  }
-
-  private static void run(String input, List<Class<? extends Pass<?, ?>>> passes) {
-    // this definitely isn't horrifying at all
-    source = input;
-    Object result = input;
-    for (Class<? extends Pass<?, ?>> pass : passes) {
-      if (errors != 0) return;
-      try {
-        Pass<?, ?> instance = getInstance(pass, result);
-        result = instance.runPass();
-      } catch (ReflectiveOperationException e) {
-        e.printStackTrace();
-        System.exit(5);
-      }
+      runPrompt(options);
     }
   }
 
-  private static String readAllInput() throws IOException {
-    // https://stackoverflow.com/questions/309424/
-    ByteArrayOutputStream result = new ByteArrayOutputStream();
-    byte[] buffer = new byte[1024];
-    int length;
-    while ((length = System.in.read(buffer)) != -1) {
-        result.write(buffer, 0, length);
+  private static void run(CompilationContext context, Pipeline<Source, ?> pipeline) {
+    try {
+      pipeline.run(context, context.source);
+    } finally {
+      context.diagnostics.flush(context.options.err);
+      report(context);
     }
-    return result.toString();
   }
 
-  private static Pass<?, ?> getInstance(Class<? extends Pass<?, ?>> pass, Object input)
-   throws ReflectiveOperationException {
-    // I laugh in the face of despair
-    Class<?> clazz = input.getClass();
+  private static void report(CompilationContext context) {
+    Options options = context.options;
+    if (options.timePasses || options.stats) context.statistics.print(options.err, options.stats);
+    if (options.statsJson == null) return;
     try {
-      return pass.getDeclaredConstructor(clazz).newInstance(input);
-    } catch (NoSuchMethodException e) {
-      // TODO: make this recursive
-      for (Class<?> interfac : clazz.getInterfaces()) {
-        try {
-          return pass.getDeclaredConstructor(interfac).newInstance(input);
-        } catch (NoSuchMethodException f) {
-          // this isn't thrown until we get to the end
-        }
-      }
-      throw new NoSuchMethodException("Could not find a matching method");
+      context.statistics.writeJson(options.resolve(options.statsJson));
+    } catch (IOException e) {
+      options.err.println("Could not write statistics to " + options.statsJson + ": " + e.getMessage());
     }
   }
 
-  static void error(Token token, String message) {
-    error(token.line, token.column, message);
+  private static Pipeline<Source, ?> backend(Options options, String fallback) {
+    String name = options.backend == null ? fallback : options.backend;
+    // the other backends don't use files anyway
+    if (options.pipe && piped.containsKey(name)) return piped.get(name);
+    return backends.get(name);
   }
 
-  static void error(int line, int column, String message) {
-    // note: line is 1-indexed, column is 0-indexed
-    errors++;
-    System.err.println(String.format("%s:%d:%d: error: %s", filename, line, column, message));
-    System.err.println(source.split("\n")[line - 1]);
-    System.err.println(repeat(' ', column - 1) + '^');
+  /*
+   * `jlox <file>` with these options, or a Batch for several files or a directory;
+   * returns the exit status. Server runs this for its clients.
+   */
+  static int runFile(Options options) throws IOException {
+    if (Batch.isBatch(options)) return new Batch(options, backend(options, "native")).run();
+    String file = options.files.get(0);
+    try {
+      return runFile(new CompilationContext(Source.map(options.resolve(file), file), options));
+    } catch (NoSuchFileException e) {
+      options.err.println("File not found: " + file);
+      return 0;
+    }
   }
 
-  private static void runFile(String input) {
-    List<Class<? extends Pass<?, ?>>> passes = new ArrayList<>(interactivePasses);
-    passes.set(passes.size() - 1, Optimize.class);  // we link instead of interpreting
-    passes.add(Linker.class);
-    run(input, passes);
+  private static int runFile(CompilationContext context) {
+    run(context, backend(context.options, "native"));
+    int errors = context.diagnostics.count();
     if (errors > 0) {
-      System.err.print("" + errors + " error");
-      if (errors > 1) System.err.println('s');
-      else System.err.println();
-      System.exit(2);
+      PrintStream err = context.options.err;
+      err.print("" + errors + " error");
+      if (errors > 1) err.println('s');
+      else err.println();
     }
+    if (context.status != 0) return context.status;
+    return errors > 0 ? 2 : 0;
   }
 
-  private static void runPrompt() throws IOException {
+  private static void exit(int status) {
+    if (status != 0) System.exit(status);
+  }
+
+  private static void runPrompt(Options options) throws IOException {
     try {
         Readline.load(ReadlineLibrary.GnuReadline);
     } catch (UnsatisfiedLinkError e) {
@@ -120,21 +124,18 @@ class Lox {
     }
     Readline.initReadline("Lox");
     Runtime.getRuntime().addShutdownHook(new Thread(Readline::cleanup));
+    // the JVM backend keeps each line loaded, so later lines can use what it declared
+    Session session = "jvm".equals(options.backend) ? new Session() : null;
     while (true) {
       try {
         String input = Readline.readline("> ");
-        if (input != null) run(input, interactivePasses);
+        if (input != null) {
+          run(new CompilationContext(Source.of("<stdin>", input), options, session), backend(options, "eval"));
+        }
       } catch (EOFException e) {
         break;
       }
-      errors = 0;
     }
     System.out.println();
   }
-
-  // https://stackoverflow.com/a/4903603
-  private static String repeat(char c, int n) {
-    if (n <= 0) return "";
-    return new String(new char[n]).replace('\0', c);
-  }
 }
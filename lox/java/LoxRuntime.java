@@ -0,0 +1,76 @@
+package lox.java;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/*
+ * Called from the classes JvmCompiler generates.
+ * They're defined by their own class loader, so everything here has to be public.
+ */
+public final class LoxRuntime {
+  private static final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+
+  private LoxRuntime() {}
+
+  public static void print(int value) {
+    out.print(value);
+    out.print('\n');
+  }
+
+  public static void print(double value) {
+    out.print(format(value));
+    out.print('\n');
+  }
+
+  /*
+   * The same as printf("%f") in C, which spells infinity `inf` and NaN `nan`; every backend prints this.
+   * A NaN can only come from arithmetic, which on x86 makes it negative, so native code prints `-nan`;
+   * the JVM doesn't promise the sign of a NaN, so it's always printed that way here.
+   */
+  public static String format(double value) {
+    if (Double.isNaN(value)) return "-nan";
+    if (Double.isInfinite(value)) return value < 0 ? "-inf" : "inf";
+    return String.format(Locale.ROOT, "%f", value);
+  }
+
+  public static void print(boolean value) {
+    out.print(value);
+    out.print('\n');
+  }
+
+  public static void print(String value) {
+    out.print(value);
+    out.print('\n');
+  }
+
+  public static void printNull() {
+    out.print("null\n");
+  }
+
+  /* ordered comparison, like fcmp one: NaN is never unequal */
+  public static boolean notEqual(double left, double right) {
+    return left < right || left > right;
+  }
+
+  /* called before an integer division by zero, which would otherwise throw without saying where */
+  public static void divisionByZero(int line, int column) {
+    throw new DivisionByZero(line, column);
+  }
+
+  public static final class DivisionByZero extends RuntimeException {
+    final int line, column;
+
+    DivisionByZero(int line, int column) {
+      // only the position is reported, so there's no need for a stack trace
+      super("Division by zero", null, false, false);
+      this.line = line;
+      this.column = column;
+    }
+  }
+
+  static void flush() {
+    out.flush();
+  }
+}
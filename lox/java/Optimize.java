@@ -3,22 +3,23 @@ package lox.java;
 import java.io.IOException;
 
 import static lox.java.Interpreter.makeCommand;
-import static lox.java.Lox.error;
+import static lox.java.Interpreter.run;
 
 class Optimize extends Pass<String, String> {
-  Optimize(String input) {
-    super(input);
+  Optimize(CompilationContext context, String input) {
+    super(context, input);
   }
 
   @Override
   String runPass() {
-    // optimize in-place; output llvm assembly
-    ProcessBuilder opt = makeCommand("opt", input, "-S", "-o", input);
+    // optimize in-place, in the same format as the input
+    ProcessBuilder opt = context.options.bitcode ? makeCommand(context, "opt", input, "-o", input)
+      : makeCommand(context, "opt", input, "-S", "-o", input);
 
     try {
-      opt.start().waitFor();
+      if (run(context, opt) != 0) error(-1, -1, "Failed to optimize file " + input);
     } catch (InterruptedException e) {
-      System.exit(130);
+      context.interrupted("opt");
     } catch (IOException e) {
       error(-1, -1, "Failed to optimize file " + input);
     }
@@ -0,0 +1,98 @@
+package lox.java;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Command line flags.
+ */
+class Options {
+  static final String USAGE = "Usage: jlox [--backend=<backend>] [--ssa] [--emit-bitcode] [--pipe] [--time-passes] [--stats] [--stats-json=<file>] [--jobs=<n>] [--tool-jobs=<n>] [--cache=<dir>] [--server] [file | directory ...]";
+  /* eval: walk the AST in the JVM; vm: compile to bytecode and run that in the JVM;
+   * jvm: compile to a JVM class and load it (in the REPL, later lines see what earlier ones declared); lli: run with the LLVM interpreter;
+   * native: link an executable */
+  static final List<String> BACKENDS = List.of("eval", "vm", "jvm", "lli", "native");
+
+  // one of BACKENDS, or null for the default (eval for the REPL, native for files)
+  String backend = null;
+  // keep variables in registers and join them with phi nodes instead of alloca/load/store
+  boolean ssa = false;
+  // for lli and native, hand LLVM bitcode to the tools instead of assembly
+  boolean bitcode = false;
+  // for lli and native, start the tools first and stream the module into them instead of a file
+  boolean pipe = false;
+  // print wall time, cpu time and allocations for each pass
+  boolean timePasses = false;
+  // like timePasses, but also print counts (tokens, AST nodes, ...)
+  boolean stats = false;
+  // write everything timePasses and stats would print to this file as JSON
+  String statsJson = null;
+  // for a Batch: how many files to compile at once (for Server, how many clients to serve at once),
+  // and how many of opt, clang and lli to run at once
+  int jobs = Runtime.getRuntime().availableProcessors();
+  // 0 for the same as jobs
+  int toolJobs = 0;
+  // keep compiled modules and executables here, by the hash of their source; see Cache
+  String cache = null;
+  // run the compile daemon instead of compiling anything
+  boolean server = false;
+  // where relative paths are, if not the current directory; the client's directory, for Server
+  Path directory = null;
+  // where diagnostics and messages about the compilation go; for Server, back to the client
+  PrintStream err = System.err;
+  final List<String> files = new ArrayList<>();
+
+  static Options parse(String[] args) {
+    Options result = new Options();
+    for (String arg : args) {
+      if (arg.startsWith("--backend=")) result.backend = backend(value(arg));
+      else if (arg.equals("--ssa")) result.ssa = true;
+      else if (arg.equals("--emit-bitcode")) result.bitcode = true;
+      else if (arg.equals("--pipe")) result.pipe = true;
+      else if (arg.equals("--time-passes")) result.timePasses = true;
+      else if (arg.equals("--stats")) result.stats = true;
+      else if (arg.startsWith("--stats-json=")) result.statsJson = value(arg);
+      else if (arg.startsWith("--jobs=")) result.jobs = count(arg);
+      else if (arg.startsWith("--tool-jobs=")) result.toolJobs = count(arg);
+      else if (arg.startsWith("--cache=")) result.cache = value(arg);
+      else if (arg.equals("--server")) result.server = true;
+      else if (arg.startsWith("--")) throw new IllegalArgumentException("Unknown option " + arg);
+      else result.files.add(arg);
+    }
+    return result;
+  }
+
+  Path resolve(String path) {
+    return directory == null ? Paths.get(path) : directory.resolve(path);
+  }
+
+  boolean collectStatistics() {
+    return timePasses || stats || statsJson != null;
+  }
+
+  private static String backend(String name) {
+    if (!BACKENDS.contains(name)) {
+      throw new IllegalArgumentException("Unknown backend " + name + "; expected one of " + BACKENDS);
+    }
+    return name;
+  }
+
+  private static int count(String arg) {
+    try {
+      int count = Integer.parseInt(value(arg));
+      if (count > 0) return count;
+    } catch (NumberFormatException e) {
+      // same message as 0
+    }
+    throw new IllegalArgumentException("Expected a positive number for " + arg);
+  }
+
+  private static String value(String arg) {
+    String value = arg.substring(arg.indexOf('=') + 1);
+    if (value.isEmpty()) throw new IllegalArgumentException("Missing value for " + arg);
+    return value;
+  }
+}
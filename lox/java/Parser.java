@@ -7,13 +7,14 @@ import java.util.Map;
 
 import static java.util.Map.entry;
 import static lox.java.Token.Type.*;
-import static lox.java.Lox.error;
 
 /*
  * Recursive descent top-down AST parser.
- * Methods called sooner have lower precedence than later methods.
+ * Methods called sooner have lower precedence than later methods,
+ * except for binary operators, which are parsed by precedence climbing
+ * using the `precedence` table below.
  */
-class Parser extends Pass<List<Token>, List<Stmt>> {
+class Parser extends Pass<TokenStream, List<Stmt>> {
   private final List<Stmt> result = new ArrayList<>();
   private final Map<Token.Type, Token.Type> enhancedAssignment = Map.ofEntries(
     entry(BANG_EQUAL, BANG),
@@ -33,8 +34,44 @@ class Parser extends Pass<List<Token>, List<Stmt>> {
 
   private static final Token.Type[] DECLARATORS = { VOID, INT, BOOL, STRING_TYPE, DOUBLE };
 
-  public Parser(List<Token> input) {
-    super(input);
+  /*
+   * Binary operators, from loosest to tightest; indexed by Token.Type ordinal.
+   *
+   * comma ::= assignment ( "," assignment )*
+   * assignment ::= or ( ( "=" | "+=" | "-=" | ... ) assignment )?
+   * or ::= and ( "or" and )*
+   * and ::= equality ( "and" equality )*
+   * equality ::= comparison ( ( "!=" | "==" ) comparison )*
+   * comparison ::= bitwise ( ( ">" | ">=" | "<" | "<=" ) bitwise )*
+   * bitwise ::= addition ( ( "^" | "|" | "&" ) addition )*
+   * addition ::= multiplication ( ( "-" | "+" ) multiplication )*
+   * multiplication ::= prefixUnary ( ( "/" | "*" | "%" ) prefixUnary )*
+   */
+  private static final int COMMA_PRECEDENCE = 1, ASSIGNMENT_PRECEDENCE = 2;
+  private static final int[] precedence = new int[Token.Type.values().length];
+  private static final Expr.BinaryFactory[] factories = new Expr.BinaryFactory[precedence.length];
+  static {
+    operators(COMMA_PRECEDENCE, Expr.Binary::new, COMMA);
+    operators(ASSIGNMENT_PRECEDENCE, null, EQUAL, PLUS_EQUAL, MINUS_EQUAL, STAR_EQUAL, SLASH_EQUAL,
+      DOT_EQUAL, CARET_EQUAL, PERCENT_EQUAL, AMPERSAND_EQUAL, PIPE_EQUAL);
+    operators(3, Expr.Logical::new, OR);
+    operators(4, Expr.Logical::new, AND);
+    operators(5, Expr.Binary::new, BANG_EQUAL, EQUAL_EQUAL);
+    operators(6, Expr.Binary::new, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL);
+    operators(7, Expr.Binary::new, CARET, PIPE, AMPERSAND);
+    operators(8, Expr.Binary::new, MINUS, PLUS);
+    operators(9, Expr.Binary::new, SLASH, STAR, PERCENT);
+  }
+
+  private static void operators(int level, Expr.BinaryFactory node, Token.Type ... types) {
+    for (Token.Type type : types) {
+      precedence[type.ordinal()] = level;
+      factories[type.ordinal()] = node;
+    }
+  }
+
+  public Parser(CompilationContext context, TokenStream input) {
+    super(context, input);
   }
 
   /* program ::= varDeclaration* */
@@ -48,6 +85,7 @@ class Parser extends Pass<List<Token>, List<Stmt>> {
         if (stmt != null) result.add(stmt);
       } catch (ParseError e) {}
     }
+    context.statistics.countNodes(result);
     return result;
   }
 
@@ -56,7 +94,7 @@ class Parser extends Pass<List<Token>, List<Stmt>> {
   /* declaration = funDeclaration | varDeclaration | statement */
   private Stmt declaration() throws ParseError {
     if (match(DECLARATORS)) {
-      Token type = previous(), id = consume(IDENTIFIER);
+      Token type = previous(), id = consume(IDENTIFIER) ? previous() : null;
       if (match(LEFT_PAREN)) return funDeclaration(type, id);
       return varDeclaration(type, id);
     }
@@ -67,12 +105,13 @@ class Parser extends Pass<List<Token>, List<Stmt>> {
   private Stmt.Function funDeclaration(Token type, Token identifier) throws ParseError {
     inFunctionDeclaration = true;
 
-    final Expr.Symbol func = new Expr.Symbol(-1, identifier, LoxType.get(type.type));
+    final Expr.Symbol func = symbol(identifier, LoxType.get(type.type));
     List<Expr.Symbol> arguments = new ArrayList<>();
     while (match(INT, BOOL, STRING_TYPE, DOUBLE)) {
       type = previous();
-      arguments.add(new Expr.Symbol(-1, consume(IDENTIFIER), LoxType.get(type.type)));
-      if (peek() != null && peek().type != COMMA) break;
+      Token argument = consume(IDENTIFIER) ? previous() : null;
+      arguments.add(symbol(argument, LoxType.get(type.type)));
+      if (!atEnd() && peekType() != COMMA) break;
       consume(COMMA);
     }
     func.arity = arguments.size();
@@ -85,7 +124,7 @@ class Parser extends Pass<List<Token>, List<Stmt>> {
 
   /* varDeclaration ::= type identifier ("=" expression)? ";" */
   private Stmt.Var varDeclaration(Token type, Token identifier) throws ParseError {
-    Expr.Symbol variable = new Expr.Symbol(-1, identifier, LoxType.get(type.type));
+    Expr.Symbol variable = symbol(identifier, LoxType.get(type.type));
     Expr.Assign equals = null;
 
     if (match(EQUAL)) {
@@ -130,7 +169,7 @@ class Parser extends Pass<List<Token>, List<Stmt>> {
     Token leftBrace = previous();
     List<Stmt> statements = new ArrayList<>();
 
-    while (!atEnd() && (peek().type != RIGHT_BRACE)) {
+    while (!atEnd() && (peekType() != RIGHT_BRACE)) {
       Stmt stmt = declaration();
       if (stmt != null) statements.add(stmt);
     }
@@ -237,78 +276,58 @@ class Parser extends Pass<List<Token>, List<Stmt>> {
    * expression ::= comma
    */
   private Expr expression() throws ParseError {
-    return comma();
-  }
-
-  /* comma ::= expression ',' expression */
-  private Expr comma() throws ParseError {
-    return parseBinary(this::assignment, null, COMMA);
-  }
-
-  /* assignment ::= expression (equal expression)?
-   * Note that we don't call parseBinary because assignment is right-associative */
-  private Expr assignment() throws ParseError {
-    Expr lvalue = or();
-    if (match(EQUAL, PLUS_EQUAL, MINUS_EQUAL, STAR_EQUAL, SLASH_EQUAL, DOT_EQUAL,
-          CARET_EQUAL, PERCENT_EQUAL, AMPERSAND_EQUAL, PIPE_EQUAL)) {
-      Token equals = previous();
-      Expr rvalue = assignment();
-      if (!(lvalue instanceof Expr.Symbol)) {
-        error(equals.line, equals.column, "INTERNAL error: pointers not implemented");
-        throw new ParseError();
-      }
-      // enhanced assignment: a &= 2;
-      if (equals.type != EQUAL) {
-        Token operation = new Token(enhancedAssignment.get(equals.type),
-          equals.lexeme.substring(0, 1), equals.line, equals.column, null);
-        rvalue = new Expr.Binary(lvalue, rvalue, operation, null);
-        equals = new Token(EQUAL, "=", equals.line, equals.column, null);
-      }
-      return new Expr.Assign((Expr.Symbol)lvalue, rvalue, equals, null);
-    }
-    return lvalue;
-  }
-
-  /* or ::= and ("or" and)* */
-  private Expr or() throws ParseError {
-    return parseBinary(this::and, LoxType.BOOL, Expr.Logical.class, OR);
-  }
-
-  /* and ::= equality ("and" equality)* */
-  private Expr and() throws ParseError {
-    return parseBinary(this::equality, LoxType.BOOL, Expr.Logical.class, AND);
+    return binary(COMMA_PRECEDENCE);
   }
 
   /*
-   * equality ::= comparison ( ( "!=" | "==" ) comparison )*
+   * binary ::= prefixUnary ( operator binary )*
+   *
+   * Precedence climbing: `minimum` is the loosest operator we're allowed to consume.
+   * Everything but assignment is left-associative, so the right operand
+   * may only contain operators that bind strictly tighter than this one.
    */
-  private Expr equality() throws ParseError {
-    return parseBinary(this::comparison, null, BANG_EQUAL, EQUAL_EQUAL);
-  }
-
-  /* comparison ::= bitwise ( ( ">" | ">=" | "<" | "<=" ) bitwise )* ; */
-  private Expr comparison() throws ParseError {
-    return parseBinary(this::bitwise, LoxType.DOUBLE, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL);
-  }
-
-  /* bitwise ::= addition ( ( "^" | "|" | "&" ) addition )* ; */
-  private Expr bitwise() throws ParseError {
-    return parseBinary(this::addition, LoxType.INT, CARET, PIPE, AMPERSAND);
-  }
-
-  /* addition ::= multiplication ( ( "-" | "+" ) multiplication )* ; */
-  private Expr addition() throws ParseError {
-    return parseBinary(this::multiplication, LoxType.DOUBLE, MINUS, PLUS);
+  private Expr binary(int minimum) throws ParseError {
+    Expr left = prefixUnary();
+    while (!atEnd()) {
+      int operator = input.type(current).ordinal(), level = precedence[operator];
+      // non-operators have a precedence of 0
+      if (level < minimum) break;
+      advance();
+      if (level == ASSIGNMENT_PRECEDENCE) {
+        left = assignment(left);
+      } else {
+        Token token = previous();
+        Expr right = binary(level + 1);
+        left = factories[operator].create(left, right, token, left.type);
+      }
+    }
+    return left;
   }
 
-  /* multiplication ::= unary ( ( "/" | "*" | "%" ) unary )* ; */
-  private Expr multiplication() throws ParseError {
-    return parseBinary(this::prefixUnary, LoxType.DOUBLE, SLASH, STAR, PERCENT);
+  /* assignment ::= expression (equal expression)?
+   * Note that the right side recurses at the same precedence because assignment is right-associative */
+  private Expr assignment(Expr lvalue) throws ParseError {
+    Token equals = previous();
+    Expr rvalue = binary(ASSIGNMENT_PRECEDENCE);
+    if (!(lvalue instanceof Expr.Symbol)) {
+      error(equals.line, equals.column, "INTERNAL error: pointers not implemented");
+      throw new ParseError();
+    }
+    // enhanced assignment: a &= 2;
+    if (equals.type != EQUAL) {
+      Token operation = new Token(enhancedAssignment.get(equals.type),
+        equals.lexeme.substring(0, 1), equals.line, equals.column, null);
+      rvalue = new Expr.Binary(lvalue, rvalue, operation, null);
+      equals = new Token(EQUAL, "=", equals.line, equals.column, null);
+    }
+    return new Expr.Assign((Expr.Symbol)lvalue, rvalue, equals, null);
   }
 
   /* prefixUnary ::= ( "!" | "-" | "++" | "--" ) prefixUnary | postfixUnary ; */
   private Expr prefixUnary() throws ParseError {
-    if (match(BANG, MINUS, PLUS_PLUS, MINUS_MINUS)) {
+    Token.Type type = peekType();
+    if (type == BANG || type == MINUS || type == PLUS_PLUS || type == MINUS_MINUS) {
+      advance();
       Token operator = previous();
       Expr right = prefixUnary();
 
@@ -367,7 +386,7 @@ class Parser extends Pass<List<Token>, List<Stmt>> {
   /* arguments ::= assignment ( "," assignment )* */
   private List<Expr> arguments() throws ParseError {
     List<Expr> result = new ArrayList<>();
-    result.add(assignment());
+    result.add(binary(ASSIGNMENT_PRECEDENCE));
 
     while (match(COMMA)) {
       result.add(expression());
@@ -380,17 +399,18 @@ class Parser extends Pass<List<Token>, List<Stmt>> {
   private Expr primary() throws ParseError {
     if (match(FALSE)) return new Expr.Literal(false, previous(), LoxType.BOOL);
     if (match(TRUE)) return new Expr.Literal(true, previous(), LoxType.BOOL);
-    if (match(IDENTIFIER)) return new Expr.Symbol(-1, previous(), null);
+    if (match(IDENTIFIER)) return symbol(previous(), null);
 
     if (match(NUMBER)) {
-      return new Expr.Literal(previous().value, previous(),
-        previous().value instanceof Integer ? LoxType.INT : LoxType.DOUBLE);
+      Token number = previous();
+      return new Expr.Literal(number.value, number,
+        number.value instanceof Integer ? LoxType.INT : LoxType.DOUBLE);
     }
 
     if (match(STRING)) {
-      String value = previous().value.toString();
+      String value = input.value(current - 1).toString();
       if (match(STRING)) {
-        value += previous().value;
+        value += input.value(current - 1);
       }
       return new Expr.Literal(value, previous(), LoxType.STRING);
     }
@@ -405,22 +425,27 @@ class Parser extends Pass<List<Token>, List<Stmt>> {
       return new Expr.Grouping(expr, left, null);
     }
 
-    if (peek() == null) {
-      error(previous().line, previous().column + previous().lexeme.length(),
+    if (atEnd()) {
+      error(input.line(current - 1), input.column(current - 1) + input.length(current - 1),
           "Unexpected end of file");
     } else {
-      error(peek().line, peek().column,
-          "Unhandled token " + peek().type);
+      error(input.line(current), input.column(current),
+          "Unhandled token " + peekType());
       panic();
     }
     throw new ParseError();
   }
 
+  private Expr.Symbol symbol(Token identifier, LoxType type) {
+    // identifier is null if there was a syntax error
+    return new Expr.Symbol(-1, identifier == null ? -1 : identifier.symbol, -1, -1, identifier, type);
+  }
+
   /* panic mode; advance until we're sure the expression is over */
   @SuppressWarnings("fallthrough")
   private void panic() {
     while (!atEnd()) {
-      switch (peek().type) {
+      switch (peekType()) {
         case RIGHT_BRACE:
           if (!inBlock) break;
           return;
@@ -444,48 +469,31 @@ class Parser extends Pass<List<Token>, List<Stmt>> {
     }
   }
 
-  private Expr parseBinary(BinaryExprParser function, LoxType max, Token.Type ... input) throws ParseError {
-    return parseBinary(function, max, Expr.Binary.class, input);
-  }
-
-  private Expr parseBinary(BinaryExprParser function, LoxType max, Class<? extends Expr> expected,
-      Token.Type ... input) throws ParseError {
-    Expr result = function.parse();
-    while (match(input)) {
-      Token operator = previous();
-      Expr right = function.parse();
-      try {
-        result = expected.getDeclaredConstructor(Expr.class, Expr.class, Token.class, LoxType.class)
-          .newInstance(result, right, operator, result.type);
-      } catch (ReflectiveOperationException e) {
-        e.printStackTrace();
-        throw new ParseError("Illegal operation: " + e.toString());
-      }
+  /* returns whether the next token was `type`; use previous() to get the token */
+  private boolean consume(Token.Type type) {
+    if (atEnd() || peekType() != type) {
+      error(input.line(current - 1), input.column(current - 1),
+          "Expected " + type + "; got "
+          + (atEnd() ? "<end-of-file>" : input.lexeme(current)));
+      panic();
+      return false;
     }
-    return result;
-  }
-
-  /*
-   * Meant to be used as an anonymous class with lambdas.
-   */
-  private interface BinaryExprParser {
-    Expr parse() throws ParseError;
+    advance();
+    return true;
   }
 
-
-  private Token consume(Token.Type type) {
-    if (atEnd() || peek().type != type) {
-      error(previous().line, previous().column,
-          "Expected " + type + "; got "
-          + (atEnd() ? "<end-of-file>" : peek().lexeme));
-      panic();
-      return null;
-    } else return advance();
+  /* separate from the varargs version so the common case doesn't allocate an array */
+  private boolean match(Token.Type type) {
+    if (!atEnd() && peekType() == type) {
+      advance();
+      return true;
+    }
+    return false;
   }
 
   private boolean match(Token.Type ... types) {
     for (Token.Type type : types) {
-      if (peek() != null && peek().type == type) {
+      if (!atEnd() && peekType() == type) {
         advance();
         return true;
       }
@@ -493,16 +501,17 @@ class Parser extends Pass<List<Token>, List<Stmt>> {
     return false;
   }
 
-  private Token peek() {
-    return atEnd() ? null : input.get(current);
+  private Token.Type peekType() {
+    return atEnd() ? null : input.type(current);
   }
 
-  private Token advance() {
-    return input.get(current++);
+  private void advance() {
+    current++;
   }
 
+  /* materializes a Token; only call this when the token is needed for the AST */
   private Token previous() {
-    return input.get(current - 1);
+    return input.token(current - 1);
   }
 
   private boolean atEnd() {
@@ -512,6 +521,5 @@ class Parser extends Pass<List<Token>, List<Stmt>> {
   @SuppressWarnings("serial")
   private static class ParseError extends Exception {
     ParseError() { super(); }
-    ParseError(String s) { super(s); }
   }
 }
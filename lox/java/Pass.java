@@ -1,11 +1,21 @@
 package lox.java;
 
 abstract class Pass<Accept, Return> {
+  protected final CompilationContext context;
   protected final Accept input;
 
-  Pass(Accept input) {
+  Pass(CompilationContext context, Accept input) {
+    this.context = context;
     this.input = input;
   }
 
   abstract Return runPass();
+
+  void error(Token token, String message) {
+    context.error(token, message);
+  }
+
+  void error(int line, int column, String message) {
+    context.error(line, column, message);
+  }
 }
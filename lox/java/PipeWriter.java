@@ -0,0 +1,43 @@
+package lox.java;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/* --pipe: instead of Writer, finish the module into the tools Compiler started, and wait for them */
+class PipeWriter extends Pass<IR, Void> {
+
+  PipeWriter(CompilationContext context, IR input) {
+    super(context, input);
+  }
+
+  @Override
+  Void runPass() {
+    ToolPipeline tools = input.tools();
+    boolean written = true;
+    try {
+      try {
+        if (context.options.bitcode) {
+          try (OutputStream out = tools.input()) {
+            out.write(new BitcodeWriter(input).toByteArray());
+          }
+        } else {
+          input.finish();
+        }
+      } catch (IOException e) {
+        // most likely a tool exited early, in which case it already said why
+        written = false;
+      }
+      // like Interpreter, pass on the exit status of the program
+      context.status = tools.waitFor(context.statistics);
+      if (!written) error(-1, -1, "Failed to write to " + tools);
+    } catch (IllegalArgumentException e) {
+      tools.destroy();
+      error(-1, -1, "Failed to write bitcode: " + e.getMessage());
+    } catch (InterruptedException e) {
+      tools.destroy();
+      context.interrupted(tools.toString());
+    }
+    return null;
+  }
+}
@@ -0,0 +1,40 @@
+package lox.java;
+
+import java.util.function.BiFunction;
+
+/*
+ * A statically typed chain of passes, built once and run many times:
+ *
+ *   Pipeline.of(Lexer::new).then(Parser::new).then(Annotate::new)
+ *
+ * Each pass only runs if none of the previous ones reported an error,
+ * and is timed if statistics are enabled.
+ * A pipeline has no state of its own; everything about a run is in its CompilationContext.
+ */
+interface Pipeline<Accept, Return> {
+  Return run(CompilationContext context, Accept input);
+
+  static <Accept, Return> Pipeline<Accept, Return> of(
+      BiFunction<CompilationContext, Accept, ? extends Pass<Accept, Return>> pass) {
+    return (context, input) -> context.statistics.run(pass, context, input);
+  }
+
+  default <Next> Pipeline<Accept, Next> then(
+      BiFunction<CompilationContext, Return, ? extends Pass<Return, Next>> pass) {
+    return (context, input) -> {
+      Return result = run(context, input);
+      if (context.hadError()) return null;
+      return context.statistics.run(pass, context, result);
+    };
+  }
+
+  /* like then(), but `pass` also runs after errors, as long as the earlier passes ran to the end */
+  default <Next> Pipeline<Accept, Next> thenDespiteErrors(
+      BiFunction<CompilationContext, Return, ? extends Pass<Return, Next>> pass) {
+    return (context, input) -> {
+      Return result = run(context, input);
+      if (result == null) return null;
+      return context.statistics.run(pass, context, result);
+    };
+  }
+}
@@ -0,0 +1,184 @@
+package lox.java;
+
+import java.util.Arrays;
+import java.util.List;
+
+
+/*
+ * Resolves every name to the declaration it refers to,
+ * recorded on the Expr.Symbol as (depth, slot):
+ * `depth` is how many scopes out the declaration is,
+ * `slot` is its position among the declarations of that scope.
+ * Later passes keep a stack of declarations in the same order and never look up names.
+ *
+ * Scopes are flat arrays: a stack of declared names,
+ * plus the innermost declaration of each name, so a lookup is O(1) however deep the nesting.
+ */
+class Resolver extends Pass<List<Stmt>, List<Stmt>>
+  implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+  // indexed by symbol id: the position on the stack of the innermost declaration, or -1
+  private final int[] innermost;
+  // the stack of declarations: their name, the scope they belong to, and the declaration they shadow
+  private int[] names = new int[16], scopeOf = new int[16], shadowed = new int[16];
+  private int declarations = 0;
+  // where each open scope starts on the stack
+  private int[] scopeStarts = new int[16];
+  private int scopes = 0;
+
+  Resolver(CompilationContext context, List<Stmt> input) {
+    super(context, input);
+    innermost = new int[context.symbols.size()];
+    Arrays.fill(innermost, -1);
+  }
+
+  public List<Stmt> runPass() {
+    Session session = context.session;
+    if (session != null) {
+      // the earlier lines of the REPL, which this one can shadow
+      beginScope();
+      for (Expr.Symbol symbol : session.declarations()) declare(symbol);
+    }
+    beginScope();
+    for (Stmt stmt : input) {
+      stmt.accept(this);
+    }
+    endScope();
+    if (session != null) endScope();
+    return input;
+  }
+
+  public Void visitStmt(Stmt.Expression stmt) { return stmt.expression.accept(this); }
+  public Void visitStmt(Stmt.Print stmt) { return stmt.expression.accept(this); }
+  public Void visitStmt(Stmt.LoopControl keyword) { return null; }
+
+  public Void visitStmt(Stmt.If stmt) {
+    stmt.condition.accept(this);
+    stmt.then.accept(this);
+    return stmt.otherwise == null ? null : stmt.otherwise.accept(this);
+  }
+
+  public Void visitStmt(Stmt.While stmt) {
+    stmt.condition.accept(this);
+    return stmt.body.accept(this);
+  }
+
+  public Void visitStmt(Stmt.Return stmt) {
+    return stmt.value == null ? null : stmt.value.accept(this);
+  }
+
+  public Void visitStmt(Stmt.Var var) {
+    declare(var.identifier);
+    if (var.equals != null) var.equals.accept(this);
+    return null;
+  }
+
+  public Void visitStmt(Stmt.Block block) {
+    beginScope();
+    for (Stmt stmt : block.statements) {
+      stmt.accept(this);
+    }
+    endScope();
+    return null;
+  }
+
+  public Void visitStmt(Stmt.Function func) {
+    declare(func.identifier);
+    // the arguments share a scope with the body, so you can't define a variable with the same name
+    beginScope();
+    for (Expr.Symbol argument : func.arguments) {
+      declare(argument);
+    }
+    for (Stmt stmt : func.body.statements) {
+      stmt.accept(this);
+    }
+    endScope();
+    return null;
+  }
+
+  public Void visitExpr(Expr.Unary expr) { return expr.right.accept(this); }
+  public Void visitExpr(Expr.Grouping expr) { return expr.expression.accept(this); }
+  public Void visitExpr(Expr.Literal expr) { return null; }
+
+  public Void visitExpr(Expr.Binary expr) {
+    expr.left.accept(this);
+    return expr.right.accept(this);
+  }
+
+  public Void visitExpr(Expr.Logical expr) {
+    expr.left.accept(this);
+    return expr.right.accept(this);
+  }
+
+  public Void visitExpr(Expr.Symbol symbol) {
+    if (!resolve(symbol)) {
+      error(symbol.token.line, symbol.token.column,
+          "Undeclared variable " + symbol.token.lexeme);
+    }
+    return null;
+  }
+
+  public Void visitExpr(Expr.Assign expr) {
+    expr.rvalue.accept(this);
+    if (!resolve(expr.lvalue)) {
+      error(expr.lvalue.token.line, expr.lvalue.token.column,
+          "Undeclared variable " + expr.lvalue.token.lexeme);
+    }
+    return null;
+  }
+
+  public Void visitExpr(Expr.Call call) {
+    if (!resolve(call.callee)) {
+      error(call.token.line, call.token.column, "Undeclared function " + call.callee.token.lexeme);
+    }
+    for (Expr arg : call.arguments) {
+      arg.accept(this);
+    }
+    return null;
+  }
+
+  private void declare(Expr.Symbol symbol) {
+    int name = symbol.token.symbol, previous = innermost[name];
+    if (previous != -1 && scopeOf[previous] == scopes - 1) {
+      error(symbol.token.line, symbol.token.column,
+          "Illegal redeclaration of variable " + symbol.token.lexeme);
+      symbol.depth = -1;
+      return;
+    }
+    if (declarations == names.length) {
+      names = Arrays.copyOf(names, declarations * 2);
+      scopeOf = Arrays.copyOf(scopeOf, declarations * 2);
+      shadowed = Arrays.copyOf(shadowed, declarations * 2);
+    }
+    names[declarations] = name;
+    scopeOf[declarations] = scopes - 1;
+    shadowed[declarations] = previous;
+    innermost[name] = declarations++;
+    // a declaration refers to itself
+    resolve(symbol);
+  }
+
+  private boolean resolve(Expr.Symbol symbol) {
+    int declaration = innermost[symbol.token.symbol];
+    if (declaration == -1) {
+      // Annotate still runs, and leaves it without a type
+      symbol.depth = -1;
+      return false;
+    }
+    symbol.depth = scopes - 1 - scopeOf[declaration];
+    symbol.slot = declaration - scopeStarts[scopeOf[declaration]];
+    return true;
+  }
+
+  private void beginScope() {
+    if (scopes == scopeStarts.length) scopeStarts = Arrays.copyOf(scopeStarts, scopes * 2);
+    scopeStarts[scopes++] = declarations;
+  }
+
+  private void endScope() {
+    int start = scopeStarts[--scopes];
+    while (declarations > start) {
+      declarations--;
+      innermost[names[declarations]] = shadowed[declarations];
+    }
+  }
+}
@@ -0,0 +1,175 @@
+package lox.java;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * The compile daemon, for --server: compiles files for Client in a JVM that stays up,
+ * so the passes are already loaded and JIT-compiled when a build runs jlox over and over.
+ *
+ * It listens on a loopback port (Java 11 has no Unix domain sockets) and writes the port
+ * and a random token to address(), which only this user can read; a client sends the token first.
+ * Clients are served at the same time, up to --jobs of them, since nothing about a compilation
+ * is global; what one prints goes to its own Options.err instead of System.err.
+ *
+ * Only compilations that just write files come here (see handles());
+ * the backends that run the program do it in the client, where its stdin and stdout are.
+ * Whatever opt and clang print still goes to the daemon's own stderr.
+ *
+ * A request is the token, the client's directory and its arguments;
+ * the reply is the exit status, then what the compilation printed to stdout and to stderr.
+ */
+class Server {
+  private static final int TIMEOUT_MILLIS = 10_000;
+
+  private Server() {}
+
+  /* the port and token of the running daemon */
+  static Path address() {
+    return Paths.get(System.getProperty("java.io.tmpdir"), "jlox-" + System.getProperty("user.name"), "daemon");
+  }
+
+  static boolean handles(Options options) {
+    return !options.server && !options.pipe && !options.files.isEmpty()
+      && (options.backend == null || options.backend.equals("native"));
+  }
+
+  static void serve(Options options) throws IOException {
+    byte[] random = new byte[32];
+    new SecureRandom().nextBytes(random);
+    StringBuilder token = new StringBuilder();
+    for (byte b : random) token.append(String.format("%02x", b));
+
+    try (ServerSocket socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      Path address = address();
+      publish(address, socket.getLocalPort() + " " + token);
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        try {
+          Files.deleteIfExists(address);
+        } catch (IOException e) {
+          // nothing left to do
+        }
+      }));
+      System.err.println("Listening on port " + socket.getLocalPort() + "; see " + address);
+      byte[] expected = token.toString().getBytes(StandardCharsets.UTF_8);
+      ExecutorService executor = Executors.newFixedThreadPool(options.jobs);
+      while (true) {
+        Socket client = socket.accept();
+        executor.execute(() -> serve(client, expected));
+      }
+    }
+  }
+
+  private static void serve(Socket socket, byte[] token) {
+    try (Socket client = socket) {
+      client.setSoTimeout(TIMEOUT_MILLIS);
+      handle(client, token);
+    } catch (IOException e) {
+      System.err.println("Lost a client: " + e.getMessage());
+    }
+  }
+
+  /* write the address file so only this user can read it, and replace it in one step */
+  private static void publish(Path address, String contents) throws IOException {
+    Path directory = address.getParent();
+    FileAttribute<?>[] attributes = {};
+    if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+      Set<PosixFilePermission> ownerOnly = PosixFilePermissions.fromString("rwx------");
+      if (!Files.isDirectory(directory)) {
+        Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(ownerOnly));
+      }
+      // someone else could have made it first
+      if (!Files.getOwner(directory).getName().equals(System.getProperty("user.name"))
+          || !Files.getPosixFilePermissions(directory).equals(ownerOnly)) {
+        throw new IOException(directory + " must belong to you and be private (chmod 700)");
+      }
+      attributes = new FileAttribute<?>[] {
+        PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))};
+    } else {
+      Files.createDirectories(directory);
+    }
+    Path temporary = Files.createTempFile(directory, "daemon", null, attributes);
+    Files.write(temporary, contents.getBytes(StandardCharsets.UTF_8));
+    Files.move(temporary, address, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static void handle(Socket client, byte[] token) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+    if (!MessageDigest.isEqual(token, in.readUTF().getBytes(StandardCharsets.UTF_8))) return;
+    Path directory = Paths.get(in.readUTF());
+    String[] args = new String[in.readInt()];
+    for (int i = 0; i < args.length; i++) {
+      args[i] = in.readUTF();
+    }
+
+    ByteArrayOutputStream stdout = new ByteArrayOutputStream(), stderr = new ByteArrayOutputStream();
+    int status = compile(directory, args, new PrintStream(stdout, true), new PrintStream(stderr, true));
+
+    DataOutputStream reply = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+    reply.writeInt(status);
+    write(reply, stdout.toByteArray());
+    write(reply, stderr.toByteArray());
+    reply.flush();
+  }
+
+  /* like Lox.main, but nothing here may exit the daemon */
+  private static int compile(Path directory, String[] args, PrintStream out, PrintStream err) {
+    Options options;
+    try {
+      options = Options.parse(args);
+    } catch (IllegalArgumentException e) {
+      out.println(e.getMessage());
+      out.println(Options.USAGE);
+      return 1;
+    }
+    if (!handles(options)) {
+      out.println(Options.USAGE);
+      return 1;
+    }
+    options.directory = directory;
+    options.err = err;
+    try {
+      return Lox.runFile(options);
+    } catch (IOException e) {
+      err.println("Could not read " + options.files.get(0) + ": " + e.getMessage());
+      return 1;
+    } catch (RuntimeException e) {
+      // an internal error; this is what the JVM would print
+      e.printStackTrace(err);
+      return 1;
+    }
+  }
+
+  static void write(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  static byte[] read(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,67 @@
+package lox.java;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * What the REPL remembers between lines with --backend=jvm.
+ *
+ * Each line is compiled to a class of its own, loaded next to the classes of the earlier lines,
+ * so the globals and functions they declared stay resident (and JIT-compiled) and a line only
+ * compiles itself. The top-level declarations of earlier lines are an outer scope
+ * for Resolver and Annotate, which a new line can shadow; the names stay mangled across lines.
+ */
+class Session {
+  final Symbols symbols = new Symbols();
+  private final JvmRunner.Loader loader = new JvmRunner.Loader();
+  // the latest top-level declaration of each name, keyed by the symbol id of the name
+  private final Map<Integer, Expr.Symbol> declarations = new LinkedHashMap<>();
+  // keyed by mangled id: the class a global or function is in, and the parameters of a function
+  private final Map<Integer, String> classes = new HashMap<>();
+  private final Map<Integer, LoxType[]> parameters = new HashMap<>();
+  // see Annotate.mangle
+  private int[] declarationCounts = new int[64];
+  private int lines = 0;
+
+  /* the earlier declarations in scope, in the order Resolver and Annotate declare them */
+  Collection<Expr.Symbol> declarations() {
+    return declarations.values();
+  }
+
+  /* for Annotate to keep counting where the last line stopped */
+  int[] declarationCounts(int size) {
+    if (size > declarationCounts.length) {
+      declarationCounts = Arrays.copyOf(declarationCounts, Math.max(size, declarationCounts.length * 2));
+    }
+    return declarationCounts;
+  }
+
+  String nextClassName() {
+    return JvmCompiler.CLASS_NAME + ++lines;
+  }
+
+  /* a top-level declaration of a line that compiled; `parameters` is null for variables */
+  void declare(Expr.Symbol symbol, String className, LoxType[] parameters) {
+    // move it to the end, after whatever it uses
+    declarations.remove(symbol.token.symbol);
+    declarations.put(symbol.token.symbol, symbol);
+    classes.put(symbol.id, className);
+    if (parameters != null) this.parameters.put(symbol.id, parameters);
+  }
+
+  String className(int id) {
+    return classes.get(id);
+  }
+
+  LoxType[] parameters(int id) {
+    return parameters.get(id);
+  }
+
+  /* one loader for the whole session, so each class can link to the ones before it */
+  JvmRunner.Loader loader() {
+    return loader;
+  }
+}
@@ -0,0 +1,143 @@
+package lox.java;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/*
+ * The text of a program, along with where it came from.
+ *
+ * Files are memory mapped instead of being read into a String.
+ * Pure ASCII input (by far the common case) is scanned directly out of the
+ * mapped bytes; anything else is decoded once into a CharBuffer.
+ */
+final class Source implements CharSequence {
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  final String name;
+  private final CharSequence text;
+  private int[] lineStarts;
+
+  private Source(String name, CharSequence text) {
+    this.name = name;
+    this.text = text;
+  }
+
+  static Source of(String name, String text) {
+    return new Source(name, text);
+  }
+
+  static Source map(Path path) throws IOException {
+    return map(path, path.toString());
+  }
+
+  /* `name` is what diagnostics call it, e.g. the path the user typed rather than the resolved one */
+  static Source map(Path path, String name) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("File too large: " + path);
+      }
+      return new Source(name,
+          decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())));
+    }
+  }
+
+  /* reads the whole stream in fixed-size chunks, without an intermediate String */
+  static Source read(InputStream in, String name) throws IOException {
+    ReadableByteChannel channel = Channels.newChannel(in);
+    ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+    while (channel.read(buffer) != -1) {
+      if (!buffer.hasRemaining()) {
+        ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+        buffer.flip();
+        buffer = bigger.put(buffer);
+      }
+    }
+    buffer.flip();
+    return new Source(name, decode(buffer));
+  }
+
+  private static CharSequence decode(ByteBuffer bytes) {
+    for (int i = bytes.position(); i < bytes.limit(); i++) {
+      if (bytes.get(i) < 0) return StandardCharsets.UTF_8.decode(bytes);
+    }
+    return new AsciiSequence(bytes.slice());
+  }
+
+  /* returns the text of the given line, without the trailing newline */
+  String line(int line) {
+    if (lineStarts == null) lineStarts = indexLines();
+    if (line < 1 || line > lineStarts.length) return "";
+    int start = lineStarts[line - 1], end = start;
+    while (end < length() && charAt(end) != '\n') end++;
+    return substring(start, end);
+  }
+
+  /* the offset of the first character of each line; only built if someone asks for a line */
+  private int[] indexLines() {
+    int[] starts = new int[16];
+    int lines = 1;
+    for (int i = 0; i < length(); i++) {
+      if (charAt(i) != '\n') continue;
+      if (lines == starts.length) starts = Arrays.copyOf(starts, lines * 2);
+      starts[lines++] = i + 1;
+    }
+    return Arrays.copyOf(starts, lines);
+  }
+
+  String substring(int start, int end) {
+    return text.subSequence(start, end).toString();
+  }
+
+  public int length() {
+    return text.length();
+  }
+
+  public char charAt(int index) {
+    return text.charAt(index);
+  }
+
+  public CharSequence subSequence(int start, int end) {
+    return text.subSequence(start, end);
+  }
+
+  public String toString() {
+    return text.toString();
+  }
+
+  /* Zero-copy view of ASCII bytes as characters */
+  private static final class AsciiSequence implements CharSequence {
+    private final ByteBuffer bytes;
+
+    AsciiSequence(ByteBuffer bytes) {
+      this.bytes = bytes;
+    }
+
+    public int length() {
+      return bytes.limit();
+    }
+
+    public char charAt(int index) {
+      return (char)bytes.get(index);
+    }
+
+    public CharSequence subSequence(int start, int end) {
+      ByteBuffer slice = bytes.duplicate();
+      slice.position(start).limit(end);
+      return new AsciiSequence(slice.slice());
+    }
+
+    public String toString() {
+      byte[] result = new byte[bytes.limit()];
+      bytes.duplicate().get(result);
+      return new String(result, StandardCharsets.US_ASCII);
+    }
+  }
+}
@@ -0,0 +1,180 @@
+package lox.java;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/*
+ * Timings and counts for a single compilation; see --time-passes and --stats.
+ * Statistics.DISABLED ignores everything, so passes can report unconditionally.
+ */
+class Statistics {
+  static final Statistics DISABLED = new Statistics(null);
+
+  private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+  private final Source source;
+  private final List<Timing> passes = new ArrayList<>();
+  private final Map<String, Long> counts = new LinkedHashMap<>();
+
+  Statistics(Source source) {
+    this.source = source;
+  }
+
+  boolean enabled() {
+    return this != DISABLED;
+  }
+
+  /* construct and run a pass, timing both */
+  <Accept, Return> Return run(BiFunction<CompilationContext, Accept, ? extends Pass<Accept, Return>> pass,
+      CompilationContext context, Accept input) {
+    if (!enabled()) return Events.run(pass.apply(context, input));
+
+    long wall = System.nanoTime(), cpu = cpuTime(), allocated = allocatedBytes();
+    Pass<Accept, Return> instance = pass.apply(context, input);
+    Return result = Events.run(instance);
+    passes.add(new Timing(instance.getClass().getSimpleName(),
+          System.nanoTime() - wall, cpuTime() - cpu, allocatedBytes() - allocated));
+    return result;
+  }
+
+  void count(String name, long value) {
+    if (enabled()) counts.merge(name, value, Long::sum);
+  }
+
+  void countNodes(List<Stmt> program) {
+    if (!enabled()) return;
+    NodeCounter counter = new NodeCounter();
+    long nodes = 0;
+    for (Stmt stmt : program) nodes += stmt.accept(counter);
+    count("astNodes", nodes);
+  }
+
+  void print(PrintStream out, boolean withCounts) {
+    StringBuilder builder = new StringBuilder(String.format("%-12s %10s %10s %12s%n",
+          "pass", "wall ms", "cpu ms", "alloc KiB"));
+    Timing total = new Timing("total", 0, 0, 0);
+    for (Timing pass : passes) {
+      pass.format(builder);
+      total = new Timing(total.name, total.wall + pass.wall,
+          total.cpu + pass.cpu, total.allocated + pass.allocated);
+    }
+    total.format(builder);
+    if (withCounts) {
+      for (Map.Entry<String, Long> count : counts.entrySet()) {
+        builder.append(String.format("%-12s %10d%n", count.getKey(), count.getValue()));
+      }
+    }
+    out.print(builder);
+  }
+
+  void writeJson(Path path) throws IOException {
+    Files.write(path, (toJson() + "\n").getBytes(StandardCharsets.UTF_8));
+  }
+
+  String toJson() {
+    StringBuilder builder = new StringBuilder("{\"source\": ").append(quote(source.name))
+      .append(", \"size\": ").append(source.length())
+      .append(", \"passes\": [");
+    for (int i = 0; i < passes.size(); i++) {
+      Timing pass = passes.get(i);
+      if (i != 0) builder.append(", ");
+      builder.append("{\"name\": ").append(quote(pass.name))
+        .append(", \"wallNanos\": ").append(pass.wall)
+        .append(", \"cpuNanos\": ").append(pass.cpu)
+        .append(", \"allocatedBytes\": ").append(pass.allocated).append('}');
+    }
+    builder.append("], \"counts\": {");
+    boolean first = true;
+    for (Map.Entry<String, Long> count : counts.entrySet()) {
+      if (!first) builder.append(", ");
+      first = false;
+      builder.append(quote(count.getKey())).append(": ").append(count.getValue());
+    }
+    return builder.append("}}").toString();
+  }
+
+  private static String quote(String s) {
+    return '"' + s.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+  }
+
+  private static long cpuTime() {
+    return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0;
+  }
+
+  // not every JVM can measure allocations; count them as 0 there
+  private static long allocatedBytes() {
+    if (!(threads instanceof com.sun.management.ThreadMXBean)) return 0;
+    return ((com.sun.management.ThreadMXBean)threads)
+      .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static class Timing {
+    final String name;
+    final long wall, cpu, allocated;
+
+    Timing(String name, long wall, long cpu, long allocated) {
+      this.name = name;
+      this.wall = wall;
+      this.cpu = cpu;
+      this.allocated = allocated;
+    }
+
+    void format(StringBuilder builder) {
+      builder.append(String.format("%-12s %10.3f %10.3f %12d%n",
+            name, wall / 1e6, cpu / 1e6, allocated / 1024));
+    }
+  }
+
+  private static class NodeCounter implements Stmt.Visitor<Integer>, Expr.Visitor<Integer> {
+    private int count(Expr expr) {
+      return expr == null ? 0 : expr.accept(this);
+    }
+
+    private int count(Stmt stmt) {
+      return stmt == null ? 0 : stmt.accept(this);
+    }
+
+    private int countAll(List<? extends Stmt> stmts) {
+      int result = 0;
+      for (Stmt stmt : stmts) result += count(stmt);
+      return result;
+    }
+
+    public Integer visitStmt(Stmt.Expression stmt) { return 1 + count(stmt.expression); }
+    public Integer visitStmt(Stmt.Print stmt) { return 1 + count(stmt.expression); }
+    public Integer visitStmt(Stmt.Var stmt) { return 2 + count(stmt.equals); }
+    public Integer visitStmt(Stmt.Block stmt) { return 1 + countAll(stmt.statements); }
+    public Integer visitStmt(Stmt.If stmt) {
+      return 1 + count(stmt.condition) + count(stmt.then) + count(stmt.otherwise);
+    }
+    public Integer visitStmt(Stmt.While stmt) { return 1 + count(stmt.condition) + count(stmt.body); }
+    public Integer visitStmt(Stmt.LoopControl stmt) { return 1; }
+    public Integer visitStmt(Stmt.Function stmt) {
+      return 2 + stmt.arguments.size() + count(stmt.body);
+    }
+    public Integer visitStmt(Stmt.Return stmt) { return 1 + count(stmt.value); }
+
+    public Integer visitExpr(Expr.Unary expr) { return 1 + count(expr.right); }
+    public Integer visitExpr(Expr.Binary expr) { return 1 + count(expr.left) + count(expr.right); }
+    public Integer visitExpr(Expr.Logical expr) { return 1 + count(expr.left) + count(expr.right); }
+    public Integer visitExpr(Expr.Grouping expr) { return 1 + count(expr.expression); }
+    public Integer visitExpr(Expr.Literal expr) { return 1; }
+    public Integer visitExpr(Expr.Symbol expr) { return 1; }
+    public Integer visitExpr(Expr.Assign expr) { return 1 + count(expr.rvalue); }
+    public Integer visitExpr(Expr.Call expr) {
+      int result = 2;
+      for (Expr argument : expr.arguments) result += count(argument);
+      return result;
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package lox.java;
+
+import java.util.Arrays;
+
+/*
+ * Per-compilation identifier interner.
+ *
+ * Every distinct name gets a dense int id, so later passes can key their
+ * tables by array index instead of hashing and comparing Strings.
+ * Names are interned straight out of the source;
+ * a String is only allocated the first time a name is seen.
+ */
+class Symbols {
+  private String[] names = new String[64];
+  private int[] hashes = new int[64];
+  // open addressing; holds id + 1 so that 0 means empty
+  private int[] table = new int[128];
+  private int size = 0;
+
+  int intern(CharSequence text, int start, int length) {
+    int hash = hash(text, start, length), mask = table.length - 1;
+    for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+      int id = table[slot] - 1;
+      if (id == -1) {
+        return add(text.subSequence(start, start + length).toString(), hash, slot);
+      }
+      if (hashes[id] == hash && matches(names[id], text, start, length)) return id;
+    }
+  }
+
+  int intern(String name) {
+    return intern(name, 0, name.length());
+  }
+
+  String name(int id) {
+    return names[id];
+  }
+
+  int size() {
+    return size;
+  }
+
+  private int add(String name, int hash, int slot) {
+    if (size == names.length) {
+      names = Arrays.copyOf(names, size * 2);
+      hashes = Arrays.copyOf(hashes, size * 2);
+    }
+    names[size] = name;
+    hashes[size] = hash;
+    table[slot] = size + 1;
+    // keep the table at most half full
+    if (++size * 2 > table.length) rehash();
+    return size - 1;
+  }
+
+  private void rehash() {
+    table = new int[table.length * 2];
+    int mask = table.length - 1;
+    for (int id = 0; id < size; id++) {
+      int slot = hashes[id] & mask;
+      while (table[slot] != 0) slot = (slot + 1) & mask;
+      table[slot] = id + 1;
+    }
+  }
+
+  /* same as String.hashCode, but without needing a String */
+  private static int hash(CharSequence text, int start, int length) {
+    int hash = 0;
+    for (int i = start; i < start + length; i++) {
+      hash = 31 * hash + text.charAt(i);
+    }
+    // spread the high bits, since we only use the low ones
+    return hash ^ (hash >>> 16);
+  }
+
+  private static boolean matches(String name, CharSequence text, int start, int length) {
+    if (name.length() != length) return false;
+    for (int i = 0; i < length; i++) {
+      if (name.charAt(i) != text.charAt(start + i)) return false;
+    }
+    return true;
+  }
+}
@@ -2,17 +2,23 @@ package lox.java;
 
 public class Token {
   final Type type;
-  // TODO: should be final, need to find a way to mangle names without changing original
-  String lexeme;
+  final String lexeme;
   final Object value;
   final int line, column;
+  // for identifiers, the id of the lexeme in Symbols; otherwise -1
+  final int symbol;
 
   Token(Type type, String lexeme, int line, int column, Object value) {
+    this(type, lexeme, line, column, value, -1);
+  }
+
+  Token(Type type, String lexeme, int line, int column, Object value, int symbol) {
     this.type = type;
     this.lexeme = lexeme;
     this.line = line;
     this.column = column;
     this.value = value;
+    this.symbol = symbol;
   }
 
   public String toString() {
@@ -0,0 +1,143 @@
+package lox.java;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Struct-of-arrays token stream.
+ *
+ * Instead of allocating a Token (plus a lexeme substring and a boxed value)
+ * for every token, the lexer appends to parallel primitive arrays
+ * that point back into the original source.
+ * Tokens are only materialized when someone asks for one with token(i).
+ */
+class TokenStream {
+  private static final Token.Type[] TYPES = Token.Type.values();
+
+  private final CharSequence source;
+  private int size = 0;
+  private int[] types, starts, lengths, lines, columns;
+  /* NUMBER: the value of the literal
+   * STRING: index of the (unescaped) value in `strings`
+   * IDENTIFIER: id of the name in Symbols */
+  private double[] numbers;
+  private final List<String> strings = new ArrayList<>();
+
+  TokenStream(CharSequence source) {
+    this.source = source;
+    // most tokens are more than one character long; this avoids most resizes
+    int capacity = source.length() / 4 + 16;
+    types = new int[capacity];
+    starts = new int[capacity];
+    lengths = new int[capacity];
+    lines = new int[capacity];
+    columns = new int[capacity];
+    numbers = new double[capacity];
+  }
+
+  void add(Token.Type type, int start, int length, int line, int column) {
+    if (size == types.length) grow();
+    types[size] = type.ordinal();
+    starts[size] = start;
+    lengths[size] = length;
+    lines[size] = line;
+    columns[size] = column;
+    size++;
+  }
+
+  void addNumber(int start, int length, int line, int column, double value) {
+    add(Token.Type.NUMBER, start, length, line, column);
+    numbers[size - 1] = value;
+  }
+
+  void addString(int start, int length, int line, int column, String value) {
+    add(Token.Type.STRING, start, length, line, column);
+    numbers[size - 1] = strings.size();
+    strings.add(value);
+  }
+
+  void addIdentifier(int start, int length, int line, int column, int symbol) {
+    add(Token.Type.IDENTIFIER, start, length, line, column);
+    numbers[size - 1] = symbol;
+  }
+
+  int size() {
+    return size;
+  }
+
+  Token.Type type(int i) {
+    return TYPES[types[i]];
+  }
+
+  int line(int i) {
+    return lines[i];
+  }
+
+  int column(int i) {
+    return columns[i];
+  }
+
+  int length(int i) {
+    return lengths[i];
+  }
+
+  String lexeme(int i) {
+    return source.subSequence(starts[i], starts[i] + lengths[i]).toString();
+  }
+
+  /* only meaningful for NUMBER tokens */
+  double number(int i) {
+    return numbers[i];
+  }
+
+  /* only meaningful for IDENTIFIER tokens */
+  int symbol(int i) {
+    return (int)numbers[i];
+  }
+
+  /* integers are any numbers written without a '.' */
+  boolean isInteger(int i) {
+    for (int j = starts[i]; j < starts[i] + lengths[i]; j++) {
+      if (source.charAt(j) == '.') return false;
+    }
+    return true;
+  }
+
+  /* the same value a Token for this index would have */
+  Object value(int i) {
+    switch (type(i)) {
+      case NUMBER:
+        if (isInteger(i)) return (int)numbers[i];
+        return numbers[i];
+      case STRING:
+        return strings.get((int)numbers[i]);
+      default:
+        return null;
+    }
+  }
+
+  /* materialize a single token, e.g. to attach to the AST */
+  Token token(int i) {
+    return new Token(type(i), lexeme(i), lines[i], columns[i], value(i),
+        type(i) == Token.Type.IDENTIFIER ? symbol(i) : -1);
+  }
+
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < size; i++) {
+      builder.append(token(i)).append('\n');
+    }
+    return builder.toString();
+  }
+
+  private void grow() {
+    int capacity = types.length * 2;
+    types = Arrays.copyOf(types, capacity);
+    starts = Arrays.copyOf(starts, capacity);
+    lengths = Arrays.copyOf(lengths, capacity);
+    lines = Arrays.copyOf(lines, capacity);
+    columns = Arrays.copyOf(columns, capacity);
+    numbers = Arrays.copyOf(numbers, capacity);
+  }
+}
@@ -0,0 +1,73 @@
+package lox.java;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * LLVM tools connected by pipes, for --pipe: Compiler writes the module into the first one
+ * while it's still generating code, and each tool reads the output of the one before,
+ * so the stages overlap and nothing goes through the disk.
+ */
+class ToolPipeline {
+  private final List<ProcessBuilder> commands;
+  private List<Process> processes;
+  private long start;
+
+  private ToolPipeline(ProcessBuilder ... commands) {
+    this.commands = List.of(commands);
+    for (ProcessBuilder command : commands) {
+      command.redirectError(ProcessBuilder.Redirect.INHERIT);
+    }
+    this.commands.get(commands.length - 1).redirectOutput(ProcessBuilder.Redirect.INHERIT);
+  }
+
+  /* run the module; like Interpreter */
+  static ToolPipeline lli() {
+    return new ToolPipeline(new ProcessBuilder("lli", "-"));
+  }
+
+  /* optimize and link the module; like Optimize and Linker. opt passes bitcode on to clang */
+  static ToolPipeline link(String executable) {
+    return new ToolPipeline(new ProcessBuilder("opt", "-", "-o", "-"),
+        new ProcessBuilder("clang", "-Wno-override-module", "-x", "ir", "-o", executable, "-"));
+  }
+
+  void start() throws IOException {
+    start = System.nanoTime();
+    processes = ProcessBuilder.startPipeline(commands);
+  }
+
+  /* what the first tool reads; closing it tells the tools the module is done */
+  OutputStream input() {
+    return processes.get(0).getOutputStream();
+  }
+
+  /* the exit status of the first tool that failed, or 0 */
+  int waitFor(Statistics statistics) throws InterruptedException {
+    int status = 0;
+    for (int i = 0; i < processes.size(); i++) {
+      int exit = processes.get(i).waitFor();
+      // like Interpreter.run, but they all started together
+      statistics.count(name(commands.get(i)) + "Nanos", System.nanoTime() - start);
+      if (status == 0) status = exit;
+    }
+    return status;
+  }
+
+  void destroy() {
+    if (processes != null) processes.forEach(Process::destroy);
+  }
+
+  @Override
+  public String toString() {
+    List<String> names = new ArrayList<>();
+    for (ProcessBuilder command : commands) names.add(name(command));
+    return String.join(" | ", names);
+  }
+
+  private static String name(ProcessBuilder command) {
+    return command.command().get(0);
+  }
+}
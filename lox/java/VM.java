@@ -0,0 +1,197 @@
+package lox.java;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import static lox.java.Bytecode.*;
+
+/*
+ * Runs Bytecode with a single dispatch loop.
+ *
+ * Frames live on the value stack: the arguments a caller pushed become
+ * the first locals of the callee, and its operand stack starts after its locals.
+ * Nothing is allocated per instruction or per call.
+ */
+class VM extends Pass<Bytecode, Void> {
+  private static final int STACK_SIZE = 1 << 16, MAX_FRAMES = 1 << 12;
+
+  private final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+  private final long[] stack = new long[STACK_SIZE];
+  // strings, at the same index as their slot in `stack`
+  private final Object[] references = new Object[STACK_SIZE];
+  // the caller of each active frame: which function, where to return to, and its frame pointer
+  private final int[] callers = new int[MAX_FRAMES], returns = new int[MAX_FRAMES], pointers = new int[MAX_FRAMES];
+
+  VM(CompilationContext context, Bytecode input) {
+    super(context, input);
+  }
+
+  Void runPass() {
+    try {
+      execute();
+    } catch (RuntimeError e) {
+      error(e.function.lines[e.pc], e.function.columns[e.pc], e.getMessage());
+    } catch (ArrayIndexOutOfBoundsException e) {
+      error(-1, -1, "Stack overflow");
+    } finally {
+      out.flush();
+    }
+    return null;
+  }
+
+  private void execute() {
+    final long[] stack = this.stack, numbers = input.numbers;
+    final Object[] references = this.references;
+    final Bytecode.Function[] functions = input.functions;
+    int current = 0, frames = 0, fp = 0, sp = functions[0].locals;
+    Bytecode.Function function = functions[0];
+    int[] code = function.code;
+    int pc = 0;
+
+    while (true) {
+      int instruction = code[pc++], operand = operand(instruction);
+      switch (opcode(instruction)) {
+        case NIL: references[sp] = null; stack[sp++] = 0; break;
+        case CONST: stack[sp++] = numbers[operand]; break;
+        case SCONST: references[sp++] = input.strings[operand]; break;
+        case TRUE: stack[sp++] = 1; break;
+        case FALSE: stack[sp++] = 0; break;
+
+        case LOAD: stack[sp++] = stack[fp + operand]; break;
+        case ALOAD: references[sp++] = references[fp + operand]; break;
+        case STORE: stack[fp + operand] = stack[--sp]; break;
+        case ASTORE: references[fp + operand] = references[--sp]; break;
+        case GLOAD: stack[sp++] = stack[operand]; break;
+        case GALOAD: references[sp++] = references[operand]; break;
+        case GSTORE: stack[operand] = stack[--sp]; break;
+        case GASTORE: references[operand] = references[--sp]; break;
+        case POP: sp--; break;
+        case DUP:
+          stack[sp] = stack[sp - 1];
+          references[sp] = references[sp - 1];
+          sp++;
+          break;
+
+        case IADD: sp--; stack[sp - 1] = (int)stack[sp - 1] + (int)stack[sp]; break;
+        case ISUB: sp--; stack[sp - 1] = (int)stack[sp - 1] - (int)stack[sp]; break;
+        case IMUL: sp--; stack[sp - 1] = (int)stack[sp - 1] * (int)stack[sp]; break;
+        case IDIV:
+          sp--;
+          if ((int)stack[sp] == 0) throw new RuntimeError(function, pc - 1, "Division by zero");
+          stack[sp - 1] = (int)stack[sp - 1] / (int)stack[sp];
+          break;
+        case IREM:
+          sp--;
+          if ((int)stack[sp] == 0) throw new RuntimeError(function, pc - 1, "Division by zero");
+          stack[sp - 1] = (int)stack[sp - 1] % (int)stack[sp];
+          break;
+        case IAND: sp--; stack[sp - 1] = (int)stack[sp - 1] & (int)stack[sp]; break;
+        case IOR: sp--; stack[sp - 1] = (int)stack[sp - 1] | (int)stack[sp]; break;
+        case IXOR: sp--; stack[sp - 1] = (int)stack[sp - 1] ^ (int)stack[sp]; break;
+        case INEG: stack[sp - 1] = -(int)stack[sp - 1]; break;
+        case IEQ: sp--; stack[sp - 1] = (int)stack[sp - 1] == (int)stack[sp] ? 1 : 0; break;
+        case INE: sp--; stack[sp - 1] = (int)stack[sp - 1] != (int)stack[sp] ? 1 : 0; break;
+        case ILT: sp--; stack[sp - 1] = (int)stack[sp - 1] < (int)stack[sp] ? 1 : 0; break;
+        case ILE: sp--; stack[sp - 1] = (int)stack[sp - 1] <= (int)stack[sp] ? 1 : 0; break;
+        case IGT: sp--; stack[sp - 1] = (int)stack[sp - 1] > (int)stack[sp] ? 1 : 0; break;
+        case IGE: sp--; stack[sp - 1] = (int)stack[sp - 1] >= (int)stack[sp] ? 1 : 0; break;
+
+        case DADD: sp--; stack[sp - 1] = bits(real(stack[sp - 1]) + real(stack[sp])); break;
+        case DSUB: sp--; stack[sp - 1] = bits(real(stack[sp - 1]) - real(stack[sp])); break;
+        case DMUL: sp--; stack[sp - 1] = bits(real(stack[sp - 1]) * real(stack[sp])); break;
+        case DDIV: sp--; stack[sp - 1] = bits(real(stack[sp - 1]) / real(stack[sp])); break;
+        case DREM: sp--; stack[sp - 1] = bits(real(stack[sp - 1]) % real(stack[sp])); break;
+        case DNEG: stack[sp - 1] = bits(-real(stack[sp - 1])); break;
+        case DEQ: sp--; stack[sp - 1] = real(stack[sp - 1]) == real(stack[sp]) ? 1 : 0; break;
+        // ordered comparison, like fcmp one: NaN is never unequal
+        case DNE: {
+          double left = real(stack[sp - 2]), right = real(stack[--sp]);
+          stack[sp - 1] = left < right || left > right ? 1 : 0;
+          break;
+        }
+        case DLT: sp--; stack[sp - 1] = real(stack[sp - 1]) < real(stack[sp]) ? 1 : 0; break;
+        case DLE: sp--; stack[sp - 1] = real(stack[sp - 1]) <= real(stack[sp]) ? 1 : 0; break;
+        case DGT: sp--; stack[sp - 1] = real(stack[sp - 1]) > real(stack[sp]) ? 1 : 0; break;
+        case DGE: sp--; stack[sp - 1] = real(stack[sp - 1]) >= real(stack[sp]) ? 1 : 0; break;
+
+        case BNOT: stack[sp - 1] ^= 1; break;
+        case I2B: stack[sp - 1] &= 1; break;
+        case I2D: stack[sp - 1] = bits((int)stack[sp - 1]); break;
+        case D2I: stack[sp - 1] = (int)real(stack[sp - 1]); break;
+
+        case SEQ: sp--; stack[sp - 1] = references[sp - 1].equals(references[sp]) ? 1 : 0; break;
+        case SNE: sp--; stack[sp - 1] = references[sp - 1].equals(references[sp]) ? 0 : 1; break;
+        case SCONCAT: sp--; references[sp - 1] = (String)references[sp - 1] + references[sp]; break;
+
+        case JUMP: pc = operand; break;
+        case JUMP_IF_FALSE: if (stack[--sp] == 0) pc = operand; break;
+        case JUMP_IF_TRUE: if (stack[--sp] != 0) pc = operand; break;
+
+        case CALL: {
+          Bytecode.Function callee = functions[operand];
+          callers[frames] = current;
+          returns[frames] = pc;
+          pointers[frames] = fp;
+          frames++;
+          current = operand;
+          fp = sp - callee.arity;
+          sp = fp + callee.locals;
+          function = callee;
+          code = callee.code;
+          pc = 0;
+          break;
+        }
+        case RETURN: {
+          long value = stack[sp - 1];
+          Object reference = references[sp - 1];
+          sp = fp;
+          frames--;
+          current = callers[frames];
+          pc = returns[frames];
+          fp = pointers[frames];
+          function = functions[current];
+          code = function.code;
+          stack[sp] = value;
+          references[sp++] = reference;
+          break;
+        }
+        case HALT:
+          return;
+
+        case PRINT_INT: out.print((int)stack[--sp]); out.print('\n'); break;
+        case PRINT_DOUBLE:
+          out.print(LoxRuntime.format(real(stack[--sp])));
+          out.print('\n');
+          break;
+        case PRINT_BOOL: out.print(stack[--sp] != 0); out.print('\n'); break;
+        case PRINT_STRING: out.print(references[--sp]); out.print('\n'); break;
+        case PRINT_NULL: sp--; out.print("null\n"); break;
+
+        default:
+          throw new IllegalStateException("INTERNAL error: unknown opcode " + opcode(instruction));
+      }
+    }
+  }
+
+  private static double real(long bits) {
+    return Double.longBitsToDouble(bits);
+  }
+
+  private static long bits(double value) {
+    return Double.doubleToRawLongBits(value);
+  }
+
+  @SuppressWarnings("serial")
+  private static class RuntimeError extends RuntimeException {
+    // the instruction that failed
+    final Bytecode.Function function;
+    final int pc;
+
+    RuntimeError(Bytecode.Function function, int pc, String message) {
+      super(message);
+      this.function = function;
+      this.pc = pc;
+    }
+  }
+}
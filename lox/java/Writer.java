@@ -1,29 +1,36 @@
 package lox.java;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.List;
 
-import static lox.java.Lox.error;
 
-class Writer extends Pass<List<String>, String> {
+/* Compiler already wrote the functions; this adds the globals, or writes the whole module as bitcode */
+class Writer extends Pass<IR, String> {
 
-  Writer(List<String> input) {
-    super(input);
+  Writer(CompilationContext context, IR input) {
+    super(context, input);
   }
 
   @Override
   String runPass() {
+    if (context.options.bitcode) {
+      try {
+        Path path = Files.write(Files.createTempFile("lox-llvm-bitcode", ".bc"),
+            new BitcodeWriter(input).toByteArray());
+        context.options.err.println("Wrote bitcode to file " + path);
+        return path.toString();
+      } catch (IOException e) {
+        error(-1, -1, "Failed to write bitcode");
+      } catch (IllegalArgumentException e) {
+        error(-1, -1, "Failed to write bitcode: " + e.getMessage());
+      }
+      return null;
+    }
     try {
-      Path tmp = Files.createTempFile("lox-llvm-asm", ".ll");
-      BufferedWriter writer = Files.newBufferedWriter(tmp);
-      writer.write(String.join("\n", input));
-      writer.flush();
-
-      System.err.println("Wrote asm to file " + tmp);
-      return tmp.toString();
+      Path path = input.finish();
+      context.options.err.println("Wrote asm to file " + path);
+      return path.toString();
     } catch (IOException e) {
       error(-1, -1, "Failed to write assembly");
     }
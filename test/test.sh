@@ -1,6 +1,9 @@
 #!/bin/sh
 dir=$(dirname $0)
 cd $dir/..
+dir=test
+failed=0
+
 for f in "$dir"/input/*; do
 	echo $(basename "$f")
 	output="$(./jlox "$f" 2>&1; echo $?)"
@@ -9,3 +12,57 @@ for f in "$dir"/input/*; do
 		nl $(echo "$output" | head -1 | cut -d ' ' -f 5)
 	fi
 done
+
+# the backends that run in the JVM print exactly what's in output/, errors included
+for f in "$dir"/input/*.lox; do
+	expected="$dir/output/$(basename "$f" .lox).out"
+	for backend in eval vm jvm; do
+		if ! ./jlox --backend=$backend "$f" 2>&1 | diff -u "$expected" -; then
+			echo "$(basename "$f") differs with --backend=$backend"
+			failed=1
+		fi
+	done
+done
+
+# a batch goes on past the files that fail, then says how many did
+tmp=$(mktemp -d)
+trap 'rm -rf "$tmp"' EXIT
+echo 'print 1 +;' > "$tmp/bad.lox"
+./jlox --backend=eval --jobs=1 "$dir"/input "$tmp/bad.lox" > "$tmp/stdout" 2> "$tmp/stderr"
+status=$?
+for f in "$dir"/input/*.lox; do
+	./jlox --backend=eval "$f" 2> /dev/null
+done | diff -u - "$tmp/stdout" || failed=1
+if [ $status -ne 2 ] || [ "$(tail -1 "$tmp/stderr")" != "10 errors (5 of 12 files failed)" ]; then
+	echo "batch exited with $status:"
+	cat "$tmp/stderr"
+	failed=1
+fi
+
+# a module written as bitcode runs the same as the assembly
+if command -v lli > /dev/null; then
+	for f in "$dir"/input/*.lox; do
+		asm="$(./jlox --backend=lli "$f" 2> /dev/null; echo $?)"
+		bitcode="$(./jlox --backend=lli --emit-bitcode "$f" 2> /dev/null; echo $?)"
+		if [ "$asm" != "$bitcode" ]; then
+			echo "$(basename "$f") differs with --emit-bitcode"
+			failed=1
+		fi
+	done
+fi
+
+# the second time, the executable comes from the cache and still runs the same
+if command -v opt > /dev/null && command -v clang > /dev/null; then
+	f="$dir"/input/print.lox
+	./jlox --cache="$tmp/cache" "$f" > /dev/null 2>&1
+	rm -f a.out
+	if ! ./jlox --cache="$tmp/cache" "$f" 2>&1 | grep -q '^Using cached executable'; then
+		echo "$(basename "$f") wasn't cached"
+		failed=1
+	elif ! ./a.out | diff -u "$dir/output/print.out" -; then
+		echo "$(basename "$f") differs from the cache"
+		failed=1
+	fi
+fi
+
+exit $failed
@@ -11,10 +11,15 @@ ALL_TYPES = [
         "Logical": ["final Expr left", "final Expr right"],
         "Grouping": ["final Expr expression"],
         "Literal": ["final Object value"],
-        "Symbol": ["int arity"],
+        # id starts as the name in Symbols; Annotate replaces it with the mangled name
+        # depth and slot locate the declaration; see Resolver
+        "Symbol": ["int arity", "int id", "int depth", "int slot"],
         "Assign": ["Expr.Symbol lvalue", "final Expr rvalue"],
         "Call": ["Expr.Symbol callee", "final List<Expr> arguments"],
-    }, ["final Token token", "LoxType type"]),
+    }, ["final Token token", "LoxType type"], {
+        # constructor references for the parser, so it doesn't need reflection
+        "Binary": ["Binary", "Logical"],
+    }),
     # statements
     ("Stmt", {
         "Expression": ["final Expr expression"],
@@ -26,7 +31,7 @@ ALL_TYPES = [
         "LoopControl": [],
         "Function": ["Expr.Symbol identifier", "final List<Expr.Symbol> arguments", "final Stmt.Block body"],
         "Return": ["final Expr value"]
-    }, ["final Token token"])
+    }, ["final Token token"], {})
 ]
 
 
@@ -37,6 +42,22 @@ def generate_visitors(basename, types):
             "\n  }")
 
 
+def generate_factories(basename, types, abstract_fields, factories):
+    result = ""
+    for name, classnames in factories.items():
+        fields = types[classnames[0]]
+        assert all(types[c] == fields for c in classnames), \
+            "factory %s needs identical fields for %s" % (name, classnames)
+        result += """
+  /* implemented by {2} */
+  interface {0}Factory {{
+    {1} create({3});
+  }}
+""".format(name, basename, ', '.join(c + '::new' for c in classnames),
+           ', '.join(f.split()[-2] + ' ' + f.split()[-1] for f in fields + abstract_fields))
+    return result
+
+
 def generate_constructor(classname, fields, abstract_fields, indent=6):
     return """
 {4}{0}({1}) {{
@@ -65,7 +86,7 @@ def generate_class(basename, classname, fields, abstract_fields):
                  generate_constructor(classname, fields, abstract_fields))
 
 
-def generate(directory, basename, types, abstract_fields):
+def generate(directory, basename, types, abstract_fields, factories):
     with open(os.path.join(directory, basename + '.java'), 'w') as output:
         base = """package lox.java;
 
@@ -76,8 +97,9 @@ abstract class {0} {{
 {1}
 {2}
   abstract <T> T accept(Visitor<T> visitor);
-""".format(basename, '\n'.join('  ' + field + ';' for field in abstract_fields),
-           generate_constructor(basename, abstract_fields, [], indent=4))
+{3}""".format(basename, '\n'.join('  ' + field + ';' for field in abstract_fields),
+           generate_constructor(basename, abstract_fields, [], indent=4),
+           generate_factories(basename, types, abstract_fields, factories))
         output.write(base)
         for classname, fields in types.items():
             output.write(generate_class(basename, classname, fields, abstract_fields))